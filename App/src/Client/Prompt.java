@@ -128,8 +128,9 @@ public class Prompt {
      * Display do mapa onde estão indicandos quantos utilizadores e quantos
      * doentes visitaram cada localização.
      */
-    public void loadMapa(int n)  {
-        Map<Location, Collection<String>> map = this.stub.loadMap(n);
+    public void loadMapa()  {
+        Map<Location, Collection<String>> map = this.stub.loadMap();
+        if (map.isEmpty()) System.out.println("Não há ninguém na grelha");
         for(Map.Entry<Location, Collection<String>> entry : map.entrySet()) {
             Collection<String> list = entry.getValue();
             System.out.print("Localização " + entry.getKey().toString() + ": ");
@@ -151,31 +152,21 @@ public class Prompt {
             System.out.println("Valores inválidos!");
         else {
             Runnable r = () -> {
-                this.stub.verifLoc(loc[0], loc[1]);
-                System.out.print("\nAviso: Já se pode deslocar para a localização (" + loc[0] + ", " + loc[1] + ")\n> ");
+                if (this.stub.verifLoc(loc[0], loc[1]))
+                    System.out.print("\nAviso: Já se pode deslocar para a localização (" + loc[0] + ", " + loc[1] + ")\n> ");
             };
-            new Thread(r).start();
+            Thread.startVirtualThread(r);
         }
     }
 
     /**
-     * Display para notificar um Utilizador que esteve em contacto
+     * Display para notificar um Utilizador que esteve em contacto.
+     * Subscreve as notificações do utilizador, que o servidor envia assim
+     * que um dos seus contactos comunica uma infeção
      * @param user identificador do utilizador
-     * @return thread que corre sobre o Runnable notif
      */
-    public Thread notification(String user) {
-        Runnable notif = () -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                boolean r = this.stub.notification(user);
-                if (r) System.out.print("\nVocê esteve em contacto com um infetado\n> ");
-                try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        };
-        return new Thread(notif);
+    public void notification(String user) {
+        this.stub.subscribe(user, () -> System.out.print("\nVocê esteve em contacto com um infetado\n> "));
     }
 
     /**
@@ -184,8 +175,6 @@ public class Prompt {
     public void display() {
         boolean cont = true;
         String loggedUser = null;
-        Thread t = null;
-        int limit = 5;
         Scanner s = new Scanner(System.in);
         System.out.println("Conexão estabelecida! Escreva help caso necessite de ajuda...");
         while (cont) {
@@ -195,8 +184,8 @@ public class Prompt {
                 case "logout" -> {
                     if (loggedUser != null) {
                         logout(loggedUser);
+                        this.stub.unsubscribe(loggedUser);
                         loggedUser = null;
-                        t.interrupt();
                     } else System.out.println("Não autenticado");
                 }
                 case "sair" -> {
@@ -210,10 +199,8 @@ public class Prompt {
                 }
                 case "login" -> {
                     if (loggedUser == null) {
-                       if ((loggedUser = login()) != null) {
-                           t = notification(loggedUser);
-                           t.start();
-                       }
+                       if ((loggedUser = login()) != null)
+                           notification(loggedUser);
                     } else System.out.println("Já se encontra autenticado");
                 }
                 case "atualizar localizacao" -> {
@@ -228,9 +215,14 @@ public class Prompt {
                 }
                 case "carregar mapa" -> {
                     if (loggedUser != null && this.stub.isUserPrivileged(loggedUser)) {
-                        loadMapa(limit);
+                        loadMapa();
                     } else System.out.println("Permissões insuficientes ou não autenticado.");
                 }
+                case "estatisticas" -> {
+                    String stats = loggedUser != null ? this.stub.stats(loggedUser) : "";
+                    if (!stats.isEmpty()) System.out.print(stats);
+                    else System.out.println("Permissões insuficientes ou não autenticado.");
+                }
                 case "verificar localizacao" -> {
                     if (loggedUser != null) {
                         verifLoc();
@@ -241,8 +233,8 @@ public class Prompt {
                         this.stub.commInfection(loggedUser);
                         System.out.println("É recomendado entrar em isolamento");
                         logout(loggedUser);
+                        this.stub.unsubscribe(loggedUser);
                         loggedUser = null;
-                        t.interrupt();
                     } else System.out.println("Não autenticado");
                 }
                 case "help" -> {
@@ -253,6 +245,7 @@ public class Prompt {
                     System.out.println(" - atualizar localizacao -> Altera a localização");
                     System.out.println(" - quantas pessoas       -> Diz quantas pessoas se encontram numa determinada localização");
                     System.out.println(" - carregar mapa         -> Carrega o Mapa com todas as localizações e utilizadores associados");
+                    System.out.println(" - estatisticas          -> Mostra as estatísticas do servidor");
                     System.out.println(" - comunicar infecao     -> Reporta que o utilizador está infetado");
                     System.out.println(" - verificar localizacao -> Pede à aplicação para notificar o utilizador quando uma localização estiver vazia");
                     System.out.println(" - sair                  -> Fecha aplicação");
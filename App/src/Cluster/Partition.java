@@ -0,0 +1,115 @@
+package Cluster;
+
+import User.Location;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classe Partition
+ * Divisão do estado por vários nós de um cluster. Cada nó é dono de uma
+ * faixa de linhas da grelha (as localizações cuja coordenada x está nessa
+ * faixa) e de uma parte dos Users, escolhida pelo hash do username (o nó
+ * "casa" do User). É partilhada pelos nós, que a usam para saber a quem
+ * enviar as mensagens entre nós, e pelo {@link Server.Stub}, que a usa
+ * para enviar cada pedido ao nó certo.
+ * Um cluster com um único nó corresponde ao servidor sem partições.
+ */
+public final class Partition {
+    private final List<String> nodes;
+    private final int self;
+    private final int grid;
+
+    /**
+     * Construtor parametrizado da classe Partition
+     * @param nodes endereços dos nós ("host:porta"), pela mesma ordem em todos
+     * @param self índice deste nó na lista, ou -1 caso seja um cliente
+     * @param grid número de linhas e colunas da grelha
+     */
+    public Partition(List<String> nodes, int self, int grid) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("Cluster sem nós");
+        if (self < -1 || self >= nodes.size()) throw new IllegalArgumentException("Índice de nó inválido: " + self);
+        this.nodes = List.copyOf(nodes);
+        this.self = self;
+        this.grid = grid;
+    }
+
+    /**
+     * Lê a lista de nós no formato "host:porta,host:porta,..."
+     * @param nodes lista de nós
+     * @param self índice deste nó na lista
+     * @param grid número de linhas e colunas da grelha
+     * @return partição correspondente
+     */
+    public static Partition parse(String nodes, int self, int grid) {
+        List<String> list = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (!node.isEmpty()) list.add(node);
+        }
+        return new Partition(list, self, grid);
+    }
+
+    public int size() {
+        return this.nodes.size();
+    }
+
+    public int getSelf() {
+        return this.self;
+    }
+
+    public List<String> getNodes() {
+        return this.nodes;
+    }
+
+    /**
+     * @param node índice do nó
+     * @return host do nó
+     */
+    public String getHost(int node) {
+        String address = this.nodes.get(node);
+        return address.substring(0, address.lastIndexOf(':'));
+    }
+
+    /**
+     * @param node índice do nó
+     * @return porta do nó
+     */
+    public int getPort(int node) {
+        String address = this.nodes.get(node);
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Nó dono de uma localização. As localizações fora da grelha são
+     * atribuídas ao nó da faixa mais próxima, que as recusa como qualquer
+     * servidor.
+     * @param loc localização
+     * @return índice do nó
+     */
+    public int ownerOf(Location loc) {
+        int x = Math.max(0, Math.min(this.grid - 1, loc.getCoordX()));
+        return (int) ((long) x * this.nodes.size() / this.grid);
+    }
+
+    /**
+     * @param username username
+     * @return índice do nó casa do User
+     */
+    public int homeOf(String username) {
+        return Math.floorMod(username.hashCode() * 0x9E3779B9, this.nodes.size());
+    }
+
+    /**
+     * @return true caso a localização pertença a este nó
+     */
+    public boolean isLocal(Location loc) {
+        return ownerOf(loc) == this.self;
+    }
+
+    /**
+     * @return true caso este nó seja a casa do User
+     */
+    public boolean isHome(String username) {
+        return homeOf(username) == this.self;
+    }
+}
@@ -0,0 +1,293 @@
+package Cluster;
+
+import Metrics.LockStats;
+import Protocol.Frame;
+import Protocol.Opcode;
+import Protocol.Protocol;
+import Server.Stub;
+import User.Location;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe Peers
+ * Conexões de um nó aos restantes nós do cluster, usadas para enviar as
+ * mensagens entre nós (opcodes NODE_*). As mensagens são:
+ * <ul>
+ *   <li>enter: um User deste nó entrou numa localização de outro nó, que
+ *   regista os contactos com os Users aí presentes;</li>
+ *   <li>leave: um User deste nó saiu de uma localização de outro nó;</li>
+ *   <li>infected: um User deste nó comunicou estar infetado, e cada nó
+ *   avisa os Users com quem esteve em contacto nas suas localizações;</li>
+ *   <li>expose: Users de outro nó estiveram em contacto com um infetado.</li>
+ * </ul>
+ * As mensagens para cada nó passam por uma fila própria, entregue por
+ * ordem por uma virtual thread, que é também a única a abrir a conexão a
+ * esse nó (quando a fila recebe a primeira mensagem, ou depois de a
+ * conexão terminar). Assim, um nó lento ou em baixo atrasa apenas as
+ * mensagens que lhe são destinadas, e quem envia uma mensagem nunca
+ * espera pela conexão.
+ * As mensagens leave, infected e expose são repetidas até o nó responder,
+ * para que nenhuma exposição se perca enquanto um nó está em baixo; podem
+ * por isso ser entregues mais do que uma vez. Já a resposta a enter é
+ * necessária antes de a deslocação ser aplicada, pelo que não é repetida:
+ * falha de imediato caso o nó não responda, ou caso esteja em baixo com
+ * outras mensagens à espera.
+ * A fila guarda as mensagens apenas em memória: as que ainda não foram
+ * entregues quando o nó termina perdem-se.
+ */
+public class Peers {
+    /** Tempo máximo de espera pela resposta de um nó */
+    private static final long TIMEOUT_MILLIS = 10_000;
+    /** Intervalos mínimo e máximo entre tentativas de entrega a um nó em baixo */
+    private static final long RETRY_MILLIS = 100;
+    private static final long MAX_RETRY_MILLIS = 5_000;
+
+    private final Partition partition;
+    private final String secret;
+    private final byte[] secretBytes;
+    private final Outbox[] outboxes;
+    private final LockStats outboxWait = new LockStats("cluster.outbox");
+
+    /**
+     * Construtor parametrizado da classe Peers
+     * @param partition partição do cluster, com o índice deste nó
+     * @param secret segredo partilhado pelos nós, que não pode ser vazio
+     */
+    public Peers(Partition partition, String secret) {
+        if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("Cluster sem segredo");
+        this.partition = partition;
+        this.secret = secret;
+        this.secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        this.outboxes = new Outbox[partition.size()];
+        for (int node = 0; node < partition.size(); node++) {
+            if (node == partition.getSelf()) continue;
+            this.outboxes[node] = new Outbox(node);
+            Thread.ofVirtual().name("peer-" + node).start(this.outboxes[node]);
+        }
+    }
+
+    public Partition getPartition() {
+        return this.partition;
+    }
+
+    public LockStats getLockStats() {
+        return this.outboxWait;
+    }
+
+    /**
+     * @param secret segredo apresentado por uma sessão
+     * @return true caso corresponda ao segredo do cluster, comparado em
+     * tempo constante para não revelar quantos bytes coincidem
+     */
+    public boolean checkSecret(String secret) {
+        return MessageDigest.isEqual(this.secretBytes, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Avisa o dono de uma localização de que um User deste nó entrou nela
+     * @param username User
+     * @param loc localização
+     * @return CompletableFuture completado com true quando o dono tiver
+     * registado os contactos, ou com false caso não os tenha registado
+     */
+    public CompletableFuture<Boolean> enter(String username, Location loc) {
+        Frame req = new Frame(Opcode.NODE_ENTER).putString(username).putLocation(loc);
+        return this.outboxes[this.partition.ownerOf(loc)].post(req, false);
+    }
+
+    /**
+     * Avisa o dono de uma localização de que um User deste nó saiu dela
+     * @param username User
+     * @param loc localização
+     */
+    public void leave(String username, Location loc) {
+        this.outboxes[this.partition.ownerOf(loc)].post(new Frame(Opcode.NODE_LEAVE).putString(username), true);
+    }
+
+    /**
+     * Avisa os restantes nós de que um User deste nó está infetado
+     * @param username User
+     */
+    public void infected(String username) {
+        for (Outbox outbox : this.outboxes)
+            if (outbox != null) outbox.post(new Frame(Opcode.NODE_INFECTED).putString(username), true);
+    }
+
+    /**
+     * Avisa o nó casa de vários Users de que estiveram em contacto com um
+     * infetado, em tantas mensagens quantas as necessárias para não
+     * ultrapassar o tamanho máximo de uma frame
+     * @param node nó casa dos Users
+     * @param usernames Users
+     */
+    public void expose(int node, Collection<String> usernames) {
+        List<String> chunk = new ArrayList<>();
+        int bytes = 0;
+        for (String username : usernames) {
+            // cada username ocupa no máximo 3 bytes por carácter, mais o comprimento
+            int size = 3 * username.length() + 5;
+            if (bytes + size > Protocol.MAX_FRAME / 2) {
+                sendExposed(node, chunk);
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+            chunk.add(username);
+            bytes += size;
+        }
+        if (!chunk.isEmpty()) sendExposed(node, chunk);
+    }
+
+    private void sendExposed(int node, List<String> usernames) {
+        Frame req = new Frame(Opcode.NODE_EXPOSE).putVarLong(usernames.size());
+        for (String username : usernames) req.putString(username);
+        this.outboxes[node].post(req, true);
+    }
+
+    /**
+     * Mensagem à espera de ser entregue a um nó
+     */
+    private static final class Message {
+        private final Frame frame;
+        private final boolean retry;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Message(Frame frame, boolean retry) {
+            this.frame = frame;
+            this.retry = retry;
+        }
+    }
+
+    /**
+     * Fila das mensagens para um nó, entregues por ordem pela sua thread
+     */
+    private final class Outbox implements Runnable {
+        private final int node;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition posted = lock.newCondition();
+        private final Deque<Message> queue = new ArrayDeque<>();
+        private boolean down = false;
+        // usado apenas pela thread da fila
+        private Stub stub;
+
+        Outbox(int node) {
+            this.node = node;
+        }
+
+        /**
+         * Acrescenta uma mensagem à fila
+         * @param retry true para repetir a entrega até o nó responder
+         * @return CompletableFuture completado com a resposta do nó, ou com
+         * false caso a mensagem não seja repetida e não tenha sido entregue
+         */
+        CompletableFuture<Boolean> post(Frame frame, boolean retry) {
+            Message message = new Message(frame, retry);
+            try {
+                outboxWait.lock(lock);
+                // sem mensagens à espera, a mensagem serve para verificar se o nó voltou
+                if (!retry && this.down && !this.queue.isEmpty()) {
+                    message.result.complete(false);
+                } else {
+                    this.queue.addLast(message);
+                    this.posted.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return message.result;
+        }
+
+        @Override
+        public void run() {
+            long backoff = RETRY_MILLIS;
+            while (true) {
+                Message message;
+                try {
+                    outboxWait.lock(lock);
+                    while (this.queue.isEmpty()) this.posted.awaitUninterruptibly();
+                    message = this.queue.peekFirst();
+                } finally {
+                    lock.unlock();
+                }
+                Boolean reply = deliver(message.frame);
+                List<Message> failed = new ArrayList<>();
+                try {
+                    outboxWait.lock(lock);
+                    if (reply != null || !message.retry) this.queue.removeFirst();
+                    if (reply == null && !this.down)
+                        System.out.println("Nó " + partition.getNodes().get(this.node) + " indisponível");
+                    this.down = reply == null;
+                    // as mensagens que não são repetidas não ficam à espera que o nó volte
+                    if (this.down) {
+                        for (Iterator<Message> it = this.queue.iterator(); it.hasNext(); ) {
+                            Message other = it.next();
+                            if (!other.retry) {
+                                it.remove();
+                                failed.add(other);
+                            }
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (reply != null || !message.retry) message.result.complete(reply != null && reply);
+                for (Message other : failed) other.result.complete(false);
+                if (reply != null) {
+                    backoff = RETRY_MILLIS;
+                } else {
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    backoff = Math.min(2 * backoff, MAX_RETRY_MILLIS);
+                }
+            }
+        }
+
+        /**
+         * Envia uma mensagem ao nó, abrindo a conexão caso ainda não exista
+         * ou tenha terminado
+         * @return a resposta do nó, ou null caso não tenha respondido
+         */
+        private Boolean deliver(Frame frame) {
+            try {
+                if (this.stub == null || !this.stub.isConnected()) {
+                    if (this.stub != null) this.stub.killStub();
+                    this.stub = new Stub(partition.getHost(this.node), partition.getPort(this.node), false);
+                    if (!this.stub.isConnected() || !reply(new Frame(Opcode.PEER).putString(secret))) {
+                        this.stub.killStub();
+                        this.stub = null;
+                        return null;
+                    }
+                }
+                return reply(frame);
+            } catch (ExecutionException | TimeoutException | EOFException e) {
+                // a conexão é reaberta na próxima tentativa
+                this.stub.killStub();
+                this.stub = null;
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        private boolean reply(Frame req) throws ExecutionException, TimeoutException, InterruptedException, EOFException {
+            return this.stub.request(req).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getBoolean();
+        }
+    }
+}
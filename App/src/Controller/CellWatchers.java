@@ -0,0 +1,62 @@
+package Controller;
+
+import Protocol.Frame;
+import Protocol.Opcode;
+import User.Location;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classe CellWatchers
+ * Guarda, para cada localização, as sessões que pediram para ser avisadas
+ * quando essa localização ficar vazia. Quando isso acontece, todas essas
+ * sessões recebem uma única Frame {@link Opcode#LOCATION_FREE} e deixam de
+ * estar à espera dessa localização.
+ * O aviso é entregue através de {@link Session#post(Object, Frame, Runnable)},
+ * para que uma sessão lenta a ler não atrase a deslocação que esvaziou a
+ * localização.
+ */
+public class CellWatchers {
+    // para cada sessão, a ação registada para cancelar a espera quando terminar
+    private final Map<Location, Map<Session, Runnable>> map = new ConcurrentHashMap<>();
+
+    /**
+     * Regista uma sessão à espera de que uma localização fique vazia
+     * @param loc localização
+     * @param session sessão a avisar
+     */
+    public void watch(Location loc, Session session) {
+        Runnable hook = () -> unwatch(loc, session);
+        Runnable[] previous = new Runnable[1];
+        this.map.compute(loc, (k, sessions) -> {
+            if (sessions == null) sessions = new ConcurrentHashMap<>();
+            previous[0] = sessions.putIfAbsent(session, hook);
+            return sessions;
+        });
+        if (previous[0] == null) session.onClose(hook);
+    }
+
+    private void unwatch(Location loc, Session session) {
+        this.map.computeIfPresent(loc, (k, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    /**
+     * Avisa todas as sessões à espera de uma localização de que ela está
+     * vazia. Cada espera é avisada uma única vez, mesmo que este método seja
+     * chamado várias vezes em simultâneo para a mesma localização.
+     * @param loc localização que ficou vazia
+     */
+    public void complete(Location loc) {
+        Map<Session, Runnable> sessions = this.map.remove(loc);
+        if (sessions == null) return;
+        Frame free = new Frame(Opcode.LOCATION_FREE).putLocation(loc);
+        for (Map.Entry<Session, Runnable> entry : sessions.entrySet()) {
+            Session session = entry.getKey();
+            session.removeOnClose(entry.getValue());
+            session.post(loc, free, null);
+        }
+    }
+}
@@ -1,11 +1,33 @@
 package Controller;
 
+import Cluster.Partition;
+import Cluster.Peers;
+import Metrics.CommandStats;
+import Metrics.CountingInputStream;
+import Metrics.CountingOutputStream;
+import Metrics.LockStats;
+import Metrics.ServerStats;
+import Protocol.Frame;
+import Protocol.Opcode;
+import Protocol.Protocol;
 import User.Location;
 import User.User;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A classe ControllerSkeleton serve como um middleware que decide a qual dos
@@ -14,99 +36,698 @@ import java.util.Map;
  * simples, mas, eventualmente, será necessário criar novos Controllers que armazenam
  * diferentes objetos e aí irá ser posta em prática a utilidade desta classe.
  * Por isso, esta classe está preparada para uma eventual expansão de código.
+ * Cada sessão começa no protocolo textual; caso o cliente envie o comando
+ * {@link Protocol#HELLO}, a sessão passa para o protocolo binário de
+ * {@link Frame}s. Ambos os protocolos recorrem às mesmas operações.
+ * As sessões binárias podem ainda subscrever as notificações de um
+ * utilizador, passando a receber uma Frame {@link Opcode#EXPOSURE} assim
+ * que um dos seus contactos comunicar uma infeção, em vez de perguntarem
+ * periodicamente ao servidor. Da mesma forma, podem pedir para ser
+ * avisadas, com uma Frame {@link Opcode#LOCATION_FREE}, quando uma
+ * localização ficar vazia.
+ * O tempo de serviço e os bytes recebidos e enviados de cada pedido são
+ * registados por comando (ver {@link ServerStats}), juntamente com as
+ * esperas pelos locks do UsersController e do RegisterUsers e o número de
+ * sessões. Os utilizadores privilegiados podem consultá-los com o comando
+ * "stats" ({@link Opcode#STATS} no protocolo binário).
+ * Os pedidos feitos em nome de um User só são aceites para Users
+ * autenticados na mesma sessão (ver {@link Session#login(User)}), que são
+ * usados diretamente, sem os procurar no UsersController. No protocolo
+ * textual e nas versões do protocolo binário anteriores à 4, o username
+ * que acompanha o pedido tem de ser o de um desses Users.
+ * Num cluster (ver {@link #setPeers(Peers)}), cada nó só regista e
+ * autentica os Users de que é a casa, e só guarda a ocupação das suas
+ * localizações. Quando um destes Users se desloca para uma localização de
+ * outro nó, o dono dessa localização cria uma cópia do User (sem password)
+ * e regista os contactos; quando comunica uma infeção, todos os nós avisam
+ * os contactos aí registados, através do respetivo nó casa.
  */
 public class ControllerSkeleton implements Skeleton {
+    /**
+     * Campos que se seguem a cada comando do protocolo textual, usados para
+     * saber quando um pedido chegou por completo: S - String (writeUTF),
+     * Z - boolean, B - byte, I - int
+     */
+    private static final Map<String, String> TEXT_FIELDS = Map.ofEntries(
+            Map.entry("register", "SSZ"),
+            Map.entry("login", "SS"),
+            Map.entry("change location", "SSS"),
+            Map.entry("how many people in location", "SS"),
+            Map.entry("communicate infection", "S"),
+            Map.entry("loadmap", "I"),
+            Map.entry("is privileged", "S"),
+            Map.entry("verify location", "SS"),
+            Map.entry("check notification", "S"),
+            Map.entry("stats", "S"),
+            Map.entry(Protocol.HELLO, "B"),
+            Map.entry("exit", ""));
+
     private final UsersController userscontroller;
     private final RegisterUsers regUsers;
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final CellWatchers watchers = new CellWatchers();
+    /** Número de linhas e colunas da grelha, caso não seja indicado */
+    public static final int DEFAULT_GRID = 5;
+
+    private final int limit;
+    private final ServerStats stats = new ServerStats();
+    private final Map<Opcode, CommandStats> frameStats = new EnumMap<>(Opcode.class);
+    private volatile Journal journal = Journal.NONE;
+    private volatile Peers peers;
+    private final ReentrantLock[] moveLocks = new ReentrantLock[64];
+    private final LockStats movesWait = new LockStats("cluster.moves");
 
     /**
-     * Método parametrizado da classe ControllerSkeleton
+     * Método parametrizado da classe ControllerSkeleton, com uma grelha de
+     * {@link #DEFAULT_GRID} linhas e colunas
      */
     public ControllerSkeleton(UsersController controller, RegisterUsers regUsers) {
+        this(controller, regUsers, DEFAULT_GRID);
+    }
+
+    /**
+     * Método parametrizado da classe ControllerSkeleton
+     * A grelha só é usada para validar as localizações, pelo que pode ter
+     * qualquer dimensão: nenhuma estrutura guarda as localizações vazias.
+     * @param grid número de linhas e colunas da grelha
+     */
+    public ControllerSkeleton(UsersController controller, RegisterUsers regUsers, int grid) {
         this.userscontroller = controller;
+        this.limit = grid;
         this.regUsers = regUsers;
+        for (int i = 0; i < this.moveLocks.length; i++) this.moveLocks[i] = new ReentrantLock();
+        controller.setOnCellEmptied(this.watchers::complete);
+        this.stats.addLocks(controller.getLockStats());
+        this.stats.addLocks(regUsers.getLockStats());
+        for (Opcode op : Opcode.values())
+            if (!op.isPush()) this.frameStats.put(op, this.stats.command(op.name()));
+    }
+
+    /**
+     * @return estatísticas do servidor
+     */
+    public ServerStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Define o Journal que guarda as alterações ao estado. As respostas a
+     * pedidos que alteram o estado só são enviadas depois de as alterações
+     * estarem guardadas.
+     * @param journal journal, já associado ao UsersController e ao RegisterUsers
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Coloca o servidor num cluster. Deve ser chamado antes de ser
+     * registado ou reposto qualquer User.
+     * As deslocações de cada User são serializadas por um lock (entre 64,
+     * escolhido pelo id do User), para que as mensagens de saída enviadas
+     * aos outros nós sigam a ordem das deslocações. A entrada numa
+     * localização de outro nó é pedida antes de adquirir o lock, para que
+     * um nó lento não atrase as deslocações dos restantes Users do mesmo lock.
+     * @param peers conexões aos restantes nós
+     */
+    public void setPeers(Peers peers) {
+        Partition partition = peers.getPartition();
+        this.userscontroller.setLocalCells(partition::isLocal);
+        this.stats.addLocks(List.of(this.movesWait, peers.getLockStats()));
+        this.peers = peers;
     }
 
     @Override
-    public void handle(DataInputStream dis, DataOutputStream dos) throws Exception {
-        int limit = 5;
-        boolean cont = true;
-        while (cont) {
-            switch (dis.readUTF()) {
-                case "register" -> {
-                    String name = dis.readUTF();
-                    String pw = dis.readUTF();
-                    boolean privileged = dis.readBoolean();
-                    boolean suc = this.userscontroller.register(name, pw, privileged);
-                    if (suc) this.regUsers.createEntry(name);
-                    dos.writeBoolean(suc);
-                    dos.flush();
+    public boolean handleRequest(Session session, DataInputStream dis, DataOutputStream dos) throws Exception {
+        if (session.start()) {
+            this.stats.sessionOpened();
+            session.onClose(this.stats::sessionClosed);
+        }
+        if (session.isBinary()) {
+            Frame req = Frame.readFrom(dis);
+            long start = System.nanoTime();
+            int out = handleFrame(session, req);
+            if (req.getOpcode() != null)
+                this.frameStats.get(req.getOpcode()).record(System.nanoTime() - start, req.wireSize(), out);
+        }
+        else handleText(session, dis, dos);
+        return session.isOpen();
+    }
+
+    /**
+     * Atende um pedido do protocolo textual. Os streams são envolvidos por
+     * outros que contam os bytes do pedido e da resposta.
+     * @param session sessão a que o pedido pertence
+     * @param input input
+     * @param output output
+     * @throws Exception exceção
+     */
+    private void handleText(Session session, DataInputStream input, DataOutputStream output) throws Exception {
+        CountingInputStream in = new CountingInputStream(input);
+        CountingOutputStream out = new CountingOutputStream(output);
+        DataInputStream dis = new DataInputStream(in);
+        DataOutputStream dos = new DataOutputStream(out);
+        String command = dis.readUTF();
+        long start = System.nanoTime();
+        switch (command) {
+            case "register" -> {
+                String name = dis.readUTF();
+                String pw = dis.readUTF();
+                boolean privileged = dis.readBoolean();
+                dos.writeBoolean(register(name, pw, privileged));
+                dos.flush();
+            }
+            case "login" -> {
+                String username = dis.readUTF();
+                String password = dis.readUTF();
+                User user = authenticate(username, password);
+                if (user != null) session.login(user);
+                dos.writeBoolean(user != null);
+                dos.flush();
+            }
+            case "change location" -> {
+                String n = dis.readUTF();
+                String locX = dis.readUTF();
+                String locY = dis.readUTF();
+                dos.writeBoolean(changeLocation(session.getUser(n), Location.parse(locX, locY)));
+                dos.flush();
+            }
+            case "how many people in location" -> {
+                String x = dis.readUTF();
+                String y = dis.readUTF();
+                dos.writeInt(howManyInLocation(Location.parse(x, y))); //-1 caso a localização seja inválida, >0 caso contrário
+                dos.flush();
+            }
+            case "communicate infection" -> {//para além de comunicar, avisar todos os users que já tiveram na loc do User
+                 String user = dis.readUTF();
+                 communicateInfection(session.getUser(user));
+            }
+            case "loadmap" -> {
+                int num = dis.readInt();
+                Map<Location, Collection<String>> map = this.userscontroller.loadMap(num);
+                for (Map.Entry<Location, Collection<String>> entry : map.entrySet()) {
+                    dos.writeBoolean(true);
+                    dos.writeUTF(String.valueOf(entry.getKey().getCoordX()));
+                    dos.writeUTF(String.valueOf(entry.getKey().getCoordY()));
+                    dos.writeInt(entry.getValue().size());
+                    for (String user : entry.getValue())
+                        dos.writeUTF(user);
+                }
+                dos.writeBoolean(false);
+                dos.flush();
+            }
+            case "is privileged" -> {
+                User user = session.getUser(dis.readUTF());
+                dos.writeBoolean(user != null && user.isPrivileged());
+                dos.flush();
+            }
+            case "verify location" -> {
+                String locX = dis.readUTF(), locY = dis.readUTF();
+                dos.writeInt(this.userscontroller.getNumberInLoc(Location.parse(locX, locY)));
+                dos.flush();
+            }
+            case "check notification" -> {
+                String user = dis.readUTF();
+                dos.writeBoolean(checkNotification(session.getUser(user)));
+                dos.flush();
+            }
+            case "stats" -> {
+                String user = dis.readUTF();
+                dos.writeUTF(stats(session.getUser(user)));
+                dos.flush();
+            }
+            case Protocol.HELLO -> {
+                int version = Protocol.negotiate(dis.readUnsignedByte());
+                dos.writeByte(version);
+                if (version >= 3) dos.writeInt(this.limit);
+                dos.flush();
+                session.setVersion(version);
+            }
+            case "exit" -> session.close();
+        }
+        if (TEXT_FIELDS.containsKey(command))
+            this.stats.command(command).record(System.nanoTime() - start, in.getCount(), out.getCount());
+    }
+
+    /**
+     * Atende um pedido do protocolo binário. A resposta é enviada através
+     * da sessão, numa Frame com o mesmo opcode e o mesmo id do pedido. Os
+     * pedidos de uma sessão são atendidos pela ordem em que chegam, pelo que
+     * um cliente pode enviar vários seguidos sem esperar pelas respostas.
+     * Frames com opcodes
+     * desconhecidos são ignoradas, tal como acontece com comandos
+     * desconhecidos no protocolo textual.
+     * @param session sessão a que o pedido pertence
+     * @param req frame com o pedido
+     * @return número de bytes enviados em resposta
+     * @throws Exception exceção
+     */
+    private int handleFrame(Session session, Frame req) throws Exception {
+        Opcode op = req.getOpcode();
+        if (op == null) return 0;
+        int out = 0;
+        Frame res = new Frame(op).setId(req.getId());
+        switch (op) {
+            case REGISTER -> {
+                String name = req.getString();
+                String pw = req.getString();
+                res.putBoolean(register(name, pw, req.getBoolean()));
+            }
+            case LOGIN -> {
+                String username = req.getString();
+                User user = authenticate(username, req.getString());
+                res.putBoolean(user != null);
+                if (user != null) {
+                    int handle = session.login(user);
+                    if (session.getVersion() >= 4) res.putVarLong(handle);
                 }
-                case "login" -> {
-                    String username = dis.readUTF();
-                    String password = dis.readUTF();
-                    boolean success = this.userscontroller.login(username, password);
-                    dos.writeBoolean(success);
-                    dos.flush();
+            }
+            case CHANGE_LOCATION -> {
+                User user = user(session, req);
+                res.putBoolean(changeLocation(user, req.getLocation()));
+            }
+            case BATCH_CHANGE_LOCATION -> {
+                // cada entrada tem pelo menos um byte do User e dois da localização
+                int count = req.getCount(3);
+                if (count < 0) {
+                    res.putVarLong(0);
+                    break;
                 }
-                case "change location" -> {
-                    String n = dis.readUTF();
-                    String locX = dis.readUTF();
-                    String locY = dis.readUTF();
-                    Location loc = new Location(locX, locY);
-                    boolean r = this.userscontroller.setLocalizacao(n, loc, limit);
-                    if (r) {
-                        Collection<User> registo = this.userscontroller.getNewRegUsers(loc);
-                        this.regUsers.createNewRegisters(registo);
-                    }
-                    dos.writeBoolean(r);
-                    dos.flush();
+                List<User> users = new ArrayList<>(count);
+                List<Location> locs = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    users.add(user(session, req));
+                    locs.add(req.getLocation());
                 }
-                case "how many people in location" -> {
-                    String x = dis.readUTF();
-                    String y = dis.readUTF();
-                    Location l = new Location(x,y);
-                    int number = -1;
-                    if (l.isInLimit(limit)) number = this.userscontroller.getNumberInLoc(new Location(x, y));
-                    dos.writeInt(number); //-1 caso a localização seja inválida, >0 caso contrário
-                    dos.flush();
+                byte[] status = this.peers == null ? changeLocations(users, locs) : changeLocationsEach(users, locs);
+                res.putVarLong(count);
+                for (byte b : status) res.putByte(b);
+            }
+            case HOW_MANY_IN_LOCATION -> res.putInt(howManyInLocation(req.getLocation()));
+            case COMMUNICATE_INFECTION -> {
+                communicateInfection(user(session, req));
+                res = null;
+            }
+            case LOAD_MAP -> {
+                Map<Location, Collection<String>> map = this.userscontroller.loadMap(req.getInt());
+                res.putVarLong(map.size());
+                for (Map.Entry<Location, Collection<String>> entry : map.entrySet()) {
+                    res.putLocation(entry.getKey());
+                    res.putVarLong(entry.getValue().size());
+                    for (String user : entry.getValue())
+                        res.putString(user);
                 }
-                case "communicate infection" -> {//para além de comunicar, avisar todos os users que já tiveram na loc do User
-                     String user = dis.readUTF();
-                     this.userscontroller.commInfection(user);
+            }
+            case LOAD_MAP_DELTA -> {
+                long since = req.getVarLong();
+                int n = req.getInt();
+                MapDelta delta = this.userscontroller.mapDelta(since, n);
+                res.putVarLong(delta.getVersion()).putBoolean(delta.isFull());
+                List<User> newNames = new ArrayList<>();
+                for (Collection<User> users : delta.getCells().values())
+                    for (User user : users)
+                        if (session.addToDictionary(user.getId())) newNames.add(user);
+                res.putVarLong(newNames.size());
+                for (User user : newNames)
+                    res.putVarLong(user.getId()).putString(user.getUsername());
+                res.putVarLong(delta.getCells().size());
+                for (Map.Entry<Location, Collection<User>> entry : delta.getCells().entrySet()) {
+                    res.putVarLong((long) entry.getKey().getCoordX() * n + entry.getKey().getCoordY());
+                    res.putVarLong(entry.getValue().size());
+                    for (User user : entry.getValue())
+                        res.putVarLong(user.getId());
                 }
-                case "loadmap" -> {
-                    int num = dis.readInt();
-                    Map<Location, Collection<String>> map = this.userscontroller.loadMap(num);
-                    for (Map.Entry<Location, Collection<String>> entry : map.entrySet()) {
-                        dos.writeBoolean(true);
-                        dos.writeUTF(entry.getKey().getCoordX());
-                        dos.writeUTF(entry.getKey().getCoordY());
-                        dos.writeInt(entry.getValue().size());
-                        for (String user : entry.getValue())
-                            dos.writeUTF(user);
-                    }
-                    dos.writeBoolean(false);
-                    dos.flush();
+            }
+            case IS_PRIVILEGED -> {
+                User user = user(session, req);
+                res.putBoolean(user != null && user.isPrivileged());
+            }
+            case VERIFY_LOCATION -> res.putInt(this.userscontroller.getNumberInLoc(req.getLocation()));
+            case CHECK_NOTIFICATION -> res.putBoolean(checkNotification(user(session, req)));
+            case STATS -> res.putString(stats(user(session, req)));
+            case SUBSCRIBE -> {
+                User user = user(session, req);
+                if (user == null) {
+                    res.putBoolean(false);
+                    break;
                 }
-                case "is privileged" -> {
-                    String user = dis.readUTF();
-                    dos.writeBoolean(this.userscontroller.isUserPrivileged(user));
-                    dos.flush();
+                Frame exposure = new Frame(Opcode.EXPOSURE);
+                if (session.getVersion() >= 6) exposure.putVarLong(session.getHandle(user.getUsername()));
+                this.subscriptions.subscribe(user.getUsername(), session, exposure);
+                out += reply(session, res.putBoolean(true));
+                // notificações que ocorreram enquanto não havia subscrição
+                if (user.getExposures() > 0)
+                    session.post(user.getUsername(), exposure, () -> this.userscontroller.takeExposures(user));
+                res = null;
+            }
+            case WATCH_LOCATION -> {
+                Location loc = req.getLocation();
+                boolean valid = loc.isInLimit(this.limit);
+                out += reply(session, res.putBoolean(valid));
+                if (valid) {
+                    this.watchers.watch(loc, session);
+                    // a localização pode já estar vazia, ou ter ficado vazia antes do registo
+                    if (this.userscontroller.getNumberInLoc(loc) == 0) this.watchers.complete(loc);
                 }
-                case "verify location" -> {
-                    String locX = dis.readUTF(), locY = dis.readUTF();
-                    dos.writeInt(this.userscontroller.getNumberInLoc(new Location(locX, locY)));
-                    dos.flush();
+                res = null;
+            }
+            case UNSUBSCRIBE -> {
+                User user = user(session, req);
+                if (user != null) this.subscriptions.unsubscribe(user.getUsername(), session);
+                res.putBoolean(user != null);
+            }
+            case EXIT -> {
+                session.close();
+                res = null;
+            }
+            case CLUSTER -> {
+                Peers peers = this.peers;
+                if (peers == null) {
+                    res.putVarLong(0);
+                    break;
                 }
-                case "check notification" -> {
-                    String user = dis.readUTF();
-                    Collection<User> contacts = this.regUsers.getListUser(user);
-                    dos.writeBoolean(this.regUsers.hasInfected(contacts));
-                    dos.flush();
+                Partition partition = peers.getPartition();
+                res.putVarLong(partition.size());
+                for (String node : partition.getNodes()) res.putString(node);
+                res.putVarLong(partition.getSelf());
+            }
+            case PEER -> {
+                boolean accepted = this.peers != null && this.peers.checkSecret(req.getString());
+                session.setPeer(accepted);
+                res.putBoolean(accepted);
+            }
+            case NODE_ENTER, NODE_LEAVE, NODE_INFECTED, NODE_EXPOSE ->
+                res.putBoolean(session.isPeer() && handleNode(op, req));
+            default -> res = null;
+        }
+        if (res != null) out += reply(session, res);
+        return out;
+    }
+
+    /**
+     * Lê o User em nome do qual um pedido é feito: o seu identificador na
+     * sessão a partir da versão 4 do protocolo, o username nas anteriores
+     * @return o User, ou null caso não esteja autenticado nesta sessão
+     */
+    private static User user(Session session, Frame req) throws EOFException {
+        if (session.getVersion() < 4) return session.getUser(req.getString());
+        long handle = req.getVarLong();
+        return handle == (int) handle ? session.getUser((int) handle) : null;
+    }
+
+    /**
+     * Envia a resposta a um pedido
+     * @return número de bytes enviados
+     */
+    private static int reply(Session session, Frame res) throws IOException {
+        session.send(res);
+        return res.wireSize();
+    }
+
+    @Override
+    public int requestLength(Session session, ByteBuffer buf) throws IOException {
+        int start = buf.position(), end = buf.limit();
+        if (session.isBinary()) {
+            int len = 0, i = start;
+            for (int shift = 0; ; shift += 7) {
+                if (i >= end) return -1;
+                if (shift > 28) throw new IOException("Varint inválido no cabeçalho da frame");
+                int b = buf.get(i++);
+                len |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            if (len < 1 || len > Protocol.MAX_FRAME) throw new IOException("Comprimento de frame inválido: " + len);
+            return i - start + len <= end - start ? i - start + len : -1;
+        }
+        if (end - start < 2) return -1;
+        int i = start + 2 + (buf.getShort(start) & 0xFFFF);
+        if (i > end) return -1;
+        byte[] command = new byte[i - start - 2];
+        buf.get(start + 2, command);
+        for (char field : TEXT_FIELDS.getOrDefault(new String(command, StandardCharsets.UTF_8), "").toCharArray()) {
+            switch (field) {
+                case 'S' -> {
+                    if (i + 2 > end) return -1;
+                    i += 2 + (buf.getShort(i) & 0xFFFF);
                 }
-                case "exit" -> cont = false;
+                case 'I' -> i += 4;
+                default -> i += 1;
             }
+            if (i > end) return -1;
         }
+        return i - start;
+    }
+
+    /**
+     * Atende uma mensagem enviada por outro nó do cluster (ver {@link Peers})
+     * @return resultado da mensagem
+     */
+    private boolean handleNode(Opcode op, Frame req) throws EOFException {
+        switch (op) {
+            case NODE_ENTER -> {
+                String name = req.getString();
+                Location loc = req.getLocation();
+                if (isHome(name) || !this.peers.getPartition().isLocal(loc)) return false;
+                User shadow = this.userscontroller.getUser(name);
+                // as cópias não têm password, pelo que nunca podem ser autenticadas
+                if (shadow == null) this.userscontroller.register(name, null, false, this.regUsers::createEntry);
+                return move(this.userscontroller.getUser(name), loc);
+            }
+            case NODE_LEAVE -> {
+                User shadow = shadow(req.getString());
+                if (shadow != null) this.userscontroller.leave(shadow);
+            }
+            case NODE_INFECTED -> {
+                User shadow = shadow(req.getString());
+                if (shadow != null) {
+                    this.userscontroller.leave(shadow);
+                    exposeContacts(shadow);
+                }
+            }
+            case NODE_EXPOSE -> {
+                int count = req.getCount(1);
+                if (count < 0) return false;
+                List<User> exposed = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String name = req.getString();
+                    User user = isHome(name) ? this.userscontroller.getUser(name) : null;
+                    if (user != null) exposed.add(user);
+                }
+                this.regUsers.expose(exposed);
+                notifyExposed(exposed);
+            }
+            default -> {
+                return false;
+            }
+        }
+        this.journal.awaitDurable();
+        return true;
+    }
+
+    /**
+     * @return true caso este nó seja a casa do User (sempre, fora de um cluster)
+     */
+    private boolean isHome(String name) {
+        Peers peers = this.peers;
+        return peers == null || peers.getPartition().isHome(name);
+    }
+
+    /**
+     * @return a cópia de um User de outro nó, ou null caso não exista
+     */
+    private User shadow(String name) {
+        return isHome(name) ? null : this.userscontroller.getUser(name);
+    }
+
+    private User authenticate(String name, String pw) {
+        return isHome(name) ? this.userscontroller.authenticate(name, pw) : null;
+    }
+
+    private boolean register(String name, String pw, boolean privileged) {
+        if (!isHome(name)) return false;
+        User user = this.userscontroller.register(name, pw, privileged, this.regUsers::createEntry);
+        this.journal.awaitDurable();
+        return user != null;
+    }
+
+    private boolean changeLocation(User u, Location loc) {
+        if (u == null) return false;
+        return this.peers == null ? move(u, loc) : moveAcross(u, loc);
+    }
+
+    private boolean move(User u, Location loc) {
+        Collection<User> registo = this.userscontroller.setLocalizacao(u, loc, this.limit);
+        if (registo != null) this.regUsers.createNewRegisters(u, registo);
+        this.journal.awaitDurable();
+        return registo != null;
+    }
+
+    /**
+     * Desloca um User deste nó num cluster. Caso a nova localização seja de
+     * outro nó, este regista primeiro os contactos, sem o lock do User
+     * adquirido; caso a anterior fosse de outro nó, este é avisado da saída
+     * depois da deslocação, sem esperar pela resposta (ver {@link Peers}).
+     * Caso o User se tenha deslocado entretanto noutro pedido, a deslocação
+     * é repetida a partir da nova localização anterior.
+     */
+    private boolean moveAcross(User u, Location loc) {
+        if (!loc.isInLimit(this.limit)) return false;
+        Partition partition = this.peers.getPartition();
+        int to = partition.ownerOf(loc);
+        ReentrantLock lock = this.moveLocks[u.getId() & (this.moveLocks.length - 1)];
+        while (true) {
+            Location old = u.getLocation();
+            if (to != partition.getSelf() && !old.equals(loc) && !this.peers.enter(u.getUsername(), loc).join())
+                return false;
+            try {
+                movesWait.lock(lock);
+                if (!u.locEquals(old)) continue;
+                boolean r = move(u, loc);
+                if (r) leaveRemote(u, old, to);
+                return r;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Avisa o dono da localização anterior de um User de que este a deixou,
+     * caso seja outro nó e não seja também o dono da nova localização
+     * @param to dono da nova localização
+     */
+    private void leaveRemote(User u, Location old, int to) {
+        if (old.equals(Location.NONE)) return;
+        int from = this.peers.getPartition().ownerOf(old);
+        if (from != this.peers.getPartition().getSelf() && from != to)
+            this.peers.leave(u.getUsername(), old);
+    }
+
+    /**
+     * Versão de {@link #changeLocations(List, List)} para um cluster, que
+     * aplica as deslocações uma a uma, já que cada uma pode envolver outro nó
+     */
+    private byte[] changeLocationsEach(List<User> found, List<Location> locs) {
+        byte[] status = new byte[(found.size() + 7) / 8];
+        for (int i = 0; i < found.size(); i++)
+            if (changeLocation(found.get(i), locs.get(i))) status[i / 8] |= (byte) (1 << (i % 8));
+        return status;
+    }
+
+    /**
+     * Aplica um lote de deslocações e regista, para cada localização de
+     * chegada, os contactos entre quem lá chegou e quem lá se encontra
+     * @param found Users, com null nos que não estão autenticados na sessão
+     * @param locs localizações, pela mesma ordem
+     * @return mapa de bits com o resultado de cada entrada (bit i%8 do byte i/8)
+     */
+    private byte[] changeLocations(List<User> found, List<Location> locs) {
+        Map<Location, Collection<User>> present = this.userscontroller.setLocalizacoes(found, locs, this.limit);
+        byte[] status = new byte[(found.size() + 7) / 8];
+        Map<Location, Collection<User>> arrivals = new HashMap<>();
+        Set<User> last = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = found.size() - 1; i >= 0; i--) {
+            User u = found.get(i);
+            if (u == null || !present.containsKey(locs.get(i))) continue;
+            status[i / 8] |= (byte) (1 << (i % 8));
+            // só a última deslocação de cada User conta para os contactos
+            if (last.add(u)) arrivals.computeIfAbsent(locs.get(i), k -> new ArrayList<>()).add(u);
+        }
+        for (Map.Entry<Location, Collection<User>> entry : arrivals.entrySet())
+            this.regUsers.createNewRegisters(entry.getValue(), present.get(entry.getKey()));
+        this.journal.awaitDurable();
+        return status;
+    }
+
+    /**
+     * Marca um User como infetado e uma exposição em cada um dos seus
+     * contactos. Os contactos com sessões subscritas são notificados de
+     * imediato, ficando a exposição dada como notificada.
+     * @param infected User infetado
+     */
+    private void communicateInfection(User infected) {
+        if (infected == null) return;
+        if (this.peers != null) {
+            communicateInfectionAcross(infected);
+            return;
+        }
+        this.userscontroller.commInfection(infected);
+        notifyExposed(this.regUsers.markExposed(infected));
+        this.journal.awaitDurable();
+    }
+
+    /**
+     * Versão de {@link #communicateInfection(User)} para um cluster: os
+     * contactos registados neste nó são avisados através do respetivo nó
+     * casa, e os restantes nós avisam os contactos registados em cada um
+     */
+    private void communicateInfectionAcross(User infected) {
+        ReentrantLock lock = this.moveLocks[infected.getId() & (this.moveLocks.length - 1)];
+        try {
+            movesWait.lock(lock);
+            Location old = infected.getLocation();
+            this.userscontroller.commInfection(infected);
+            leaveRemote(infected, old, this.peers.getPartition().getSelf());
+        } finally {
+            lock.unlock();
+        }
+        exposeContacts(infected);
+        this.peers.infected(infected.getUsername());
+        this.journal.awaitDurable();
+    }
+
+    /**
+     * Marca uma exposição nos contactos de um User registados neste nó:
+     * diretamente nos Users de que este nó é a casa, através de uma
+     * mensagem ao nó casa nos restantes
+     */
+    private void exposeContacts(User infected) {
+        Partition partition = this.peers.getPartition();
+        List<User> home = new ArrayList<>();
+        Map<Integer, List<String>> others = new HashMap<>();
+        for (User contact : this.regUsers.getContacts(infected)) {
+            String name = contact.getUsername();
+            if (partition.isHome(name)) home.add(contact);
+            else others.computeIfAbsent(partition.homeOf(name), k -> new ArrayList<>()).add(name);
+        }
+        this.regUsers.expose(home);
+        notifyExposed(home);
+        others.forEach(this.peers::expose);
+    }
+
+    /**
+     * Notifica os Users expostos com sessões subscritas. A exposição só fica
+     * dada como notificada depois de a notificação ser escrita, pelo que,
+     * caso a escrita falhe, continua disponível em CHECK_NOTIFICATION.
+     */
+    private void notifyExposed(Collection<User> exposed) {
+        for (User contact : exposed)
+            this.subscriptions.push(contact.getUsername(), () -> this.userscontroller.takeExposures(contact));
+    }
+
+    /**
+     * @return -1 caso a localização seja inválida, o número de Users nela caso contrário
+     */
+    private int howManyInLocation(Location loc) {
+        int number = -1;
+        if (loc.isInLimit(this.limit)) number = this.userscontroller.getNumberInLoc(loc);
+        return number;
+    }
+
+    /**
+     * @return as estatísticas do servidor, ou uma String vazia caso o User
+     * não seja privilegiado
+     */
+    private String stats(User user) {
+        return user != null && user.isPrivileged() ? this.stats.report() : "";
+    }
+
+    /**
+     * @return true caso o User tenha exposições por notificar, que ficam notificadas
+     */
+    private boolean checkNotification(User u) {
+        boolean r = u != null && this.userscontroller.takeExposures(u) > 0;
+        if (r) this.journal.awaitDurable();
+        return r;
     }
-}
\ No newline at end of file
+}
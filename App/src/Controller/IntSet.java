@@ -0,0 +1,103 @@
+package Controller;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Classe IntSet
+ * Conjunto de inteiros não negativos guardados diretamente num array, com
+ * endereçamento aberto, sem criar um objeto por elemento. Serve para
+ * guardar os identificadores dos contactos de um User ocupando apenas
+ * alguns bytes por contacto.
+ * Não é thread-safe: quem o usa é responsável pela sincronização.
+ */
+public final class IntSet {
+    private static final int EMPTY = -1;
+
+    private int[] table;
+    private int size;
+
+    /**
+     * Construtor por omissão da classe IntSet
+     */
+    public IntSet() {
+        this.table = new int[4];
+        Arrays.fill(this.table, EMPTY);
+        this.size = 0;
+    }
+
+    /**
+     * Construtor de um conjunto com os valores de uma parte de um array,
+     * dimensionado de uma só vez para os conter
+     * @param values valores, não negativos
+     * @param from índice do primeiro valor
+     * @param to índice a seguir ao último valor
+     */
+    public IntSet(int[] values, int from, int to) {
+        int capacity = 4;
+        while ((to - from) * 8 > capacity * 7) capacity *= 2;
+        this.table = new int[capacity];
+        Arrays.fill(this.table, EMPTY);
+        this.size = 0;
+        for (int i = from; i < to; i++) add(values[i]);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    private int slot(int value) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (this.table.length - 1);
+    }
+
+    /**
+     * Adiciona um valor ao conjunto
+     * @param value valor, não negativo
+     * @return true caso o valor ainda não existisse
+     */
+    public boolean add(int value) {
+        int i = slot(value);
+        for (; this.table[i] != EMPTY; i = (i + 1) & (this.table.length - 1))
+            if (this.table[i] == value) return false;
+        this.table[i] = value;
+        if (++this.size * 8 > this.table.length * 7) resize(this.table.length * 2);
+        return true;
+    }
+
+    /**
+     * Executa uma ação para cada valor do conjunto
+     * @param action ação
+     */
+    public void forEach(IntConsumer action) {
+        for (int v : this.table)
+            if (v != EMPTY) action.accept(v);
+    }
+
+    /**
+     * @return cópia dos valores do conjunto, por ordem arbitrária
+     */
+    public int[] toArray() {
+        int[] r = new int[this.size];
+        int n = 0;
+        for (int v : this.table)
+            if (v != EMPTY) r[n++] = v;
+        return r;
+    }
+
+    private void resize(int capacity) {
+        int[] old = this.table;
+        this.table = new int[capacity];
+        Arrays.fill(this.table, EMPTY);
+        for (int v : old) {
+            if (v == EMPTY) continue;
+            int i = slot(v);
+            while (this.table[i] != EMPTY) i = (i + 1) & (capacity - 1);
+            this.table[i] = v;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package Controller;
+
+import User.Location;
+import User.User;
+import java.util.Collection;
+
+/**
+ * Interface Journal
+ * Recebe as alterações ao estado do {@link UsersController} e do
+ * {@link RegisterUsers}, para que possam ser guardadas de forma persistente.
+ * Cada método é chamado depois de a alteração ter sido feita e, sempre que
+ * a ordem importa (por exemplo, deslocações do mesmo User), ainda com o
+ * lock que a protege adquirido, pelo que a ordem das chamadas corresponde à
+ * ordem das alterações. Por omissão, nada é guardado ({@link #NONE}).
+ * Um Journal que deixe de conseguir guardar as alterações lança uma
+ * {@link java.io.UncheckedIOException}, tanto nas alterações seguintes como
+ * em {@link #awaitDurable()}, para que o pedido falhe em vez de ser
+ * confirmado ao cliente.
+ */
+public interface Journal {
+    /** Journal que não guarda nada */
+    Journal NONE = new Journal() {};
+
+    default void register(User user) {
+    }
+
+    default void move(User user, Location loc) {
+    }
+
+    default void infect(User user) {
+    }
+
+    /**
+     * @param epoch época em que os contactos foram registados (ver {@link RegisterUsers})
+     * @param user User que chegou a uma localização
+     * @param contacts Users com quem passou a ter contacto
+     */
+    default void contacts(long epoch, User user, Collection<User> contacts) {
+    }
+
+    /**
+     * @param users Users que ficaram com uma exposição pendente
+     */
+    default void exposed(Collection<User> users) {
+    }
+
+    /**
+     * @param user User cujas exposições pendentes foram notificadas
+     */
+    default void notified(User user) {
+    }
+
+    /**
+     * Espera até que as alterações feitas pela thread atual estejam
+     * guardadas, antes de a resposta ao pedido ser enviada
+     * @throws java.io.UncheckedIOException caso não tenham sido guardadas
+     */
+    default void awaitDurable() {
+    }
+}
@@ -0,0 +1,45 @@
+package Controller;
+
+import User.Location;
+import User.User;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Classe MapDelta
+ * Resultado de {@link UsersController#mapDelta(long, int)}: as localizações
+ * cujo conteúdo mudou desde uma dada versão do mapa, juntamente com a
+ * versão a que o resultado corresponde. Uma localização associada a uma
+ * lista vazia ficou sem ninguém. Caso o histórico de alterações já não
+ * chegue à versão pedida, o resultado é uma fotografia completa
+ * ({@link #isFull()}), que substitui tudo o que o cliente conhecia.
+ */
+public class MapDelta {
+    private final long version;
+    private final boolean full;
+    private final Map<Location, Collection<User>> cells;
+
+    /**
+     * Construtor parametrizado da classe MapDelta
+     * @param version versão do mapa a que o resultado corresponde
+     * @param full true caso o resultado contenha todas as localizações ocupadas
+     * @param cells localizações e Users que lá se encontram
+     */
+    public MapDelta(long version, boolean full, Map<Location, Collection<User>> cells) {
+        this.version = version;
+        this.full = full;
+        this.cells = cells;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public boolean isFull() {
+        return this.full;
+    }
+
+    public Map<Location, Collection<User>> getCells() {
+        return this.cells;
+    }
+}
@@ -1,94 +1,385 @@
 package Controller;
 
+import Metrics.LockStats;
 import User.User;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
 
 /**
  * Classe RegisterUsers
- * Armazena o conjunto de utilizadores que já estiveram na mesma localização
- * de qualquer utilizador. Se um utilizador ainda não partilhou a sua
- * localização com nenhum outro, a lista de utilizadores que lhe está associada
- * é vazia.
+ * Armazena o conjunto de utilizadores que estiveram na mesma localização
+ * de qualquer utilizador durante a janela de exposição. Se um utilizador
+ * não partilhou a sua localização com nenhum outro nessa janela, a lista de
+ * utilizadores que lhe está associada é vazia.
+ * Os utilizadores são identificados pelo seu id (ver {@link User#getId()}),
+ * pelo que os contactos de cada um são guardados num {@link IntSet}, indexado
+ * pelo id, em vez de num conjunto de referências para Users.
+ * Os contactos estão divididos em épocas de duração fixa (por omissão, um
+ * dia), guardadas num anel com tantas posições quantas as épocas da janela
+ * (por omissão, 14). Cada contacto é registado na época atual; quando
+ * começa uma nova época, esta ocupa a posição da mais antiga, que é
+ * descartada de uma só vez, sem percorrer os seus contactos. Os contactos
+ * de um User são a união dos das épocas ainda dentro da janela, pelo que a
+ * memória ocupada é limitada pela janela e não pelo tempo de execução.
+ * O write lock só é usado para aumentar os arrays e para começar uma nova
+ * época; cada conjunto de contactos é alterado com o read lock e com o lock
+ * da sua stripe, pelo que o registo de contactos em localizações diferentes
+ * decorre em paralelo. A stripe de um User protege os seus conjuntos em
+ * todas as épocas. Nunca é adquirido mais do que um lock de stripe de cada
+ * vez.
+ * Os novos contactos e exposições são comunicados ao {@link Journal}
+ * definido com {@link #setJournal}.
+ * O tempo de espera por cada um destes locks é medido (ver
+ * {@link #getLockStats()}).
  */
 public class RegisterUsers {
-    private final Map<String, Set<User>> map;
+    /** Duração, por omissão, de cada época: um dia */
+    public static final long DEFAULT_EPOCH_MILLIS = 24 * 60 * 60 * 1000L;
+    /** Número de épocas, por omissão, da janela de exposição */
+    public static final int DEFAULT_WINDOW = 14;
+
+    /**
+     * Contactos registados durante uma época, indexados pelo id do User
+     */
+    private static class Epoch {
+        private final long number;
+        private IntSet[] sets;
+
+        private Epoch(long number, int capacity) {
+            this.number = number;
+            this.sets = new IntSet[capacity];
+        }
+    }
+
+    private User[] users;
+    private final Epoch[] ring;
+    private volatile Epoch current;
+    private final long epochMillis;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final Lock rlock = lock.readLock();
     private final Lock wlock = lock.writeLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[64];
+    private volatile Journal journal = Journal.NONE;
+    private final LockStats directoryWait = new LockStats("contacts.directory");
+    private final LockStats stripesWait = new LockStats("contacts.stripes");
 
     /**
-     * Construtor por omissão da classe RegisterUsers
+     * Construtor por omissão da classe RegisterUsers, com uma janela de
+     * {@link #DEFAULT_WINDOW} épocas de um dia
      */
     public RegisterUsers() {
-        this.map = new HashMap<>();
+        this(DEFAULT_EPOCH_MILLIS, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Construtor parametrizado da classe RegisterUsers
+     * @param epochMillis duração de cada época, em milissegundos
+     * @param window número de épocas da janela de exposição
+     */
+    public RegisterUsers(long epochMillis, int window) {
+        if (epochMillis <= 0 || window <= 0) throw new IllegalArgumentException("Janela de exposição inválida");
+        this.users = new User[16];
+        this.ring = new Epoch[window];
+        this.current = null;
+        this.epochMillis = epochMillis;
+        for (int i = 0; i < this.stripes.length; i++) this.stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Define o Journal que recebe os novos contactos e exposições
+     * @param journal journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return estatísticas das esperas pelo lock dos arrays e pelos locks das stripes
+     */
+    public List<LockStats> getLockStats() {
+        return List.of(this.directoryWait, this.stripesWait);
+    }
+
+    /**
+     * @return número da época atual
+     */
+    public long currentEpoch() {
+        return Math.floorDiv(System.currentTimeMillis(), this.epochMillis);
+    }
+
+    /**
+     * @return números das épocas dentro da janela que já têm contactos
+     * registados, por ordem crescente
+     */
+    public long[] getEpochs() {
+        long oldest = currentEpoch() - this.ring.length + 1;
+        try {
+            directoryWait.lockRead(lock);
+            return Arrays.stream(this.ring).filter(e -> e != null && e.number >= oldest)
+                    .mapToLong(e -> e.number).sorted().toArray();
+        } finally {
+            rlock.unlock();
+        }
     }
 
     /**
      * Método que cria uma entrada para o mapa, ou seja, adiciona um novo
      */
-    public void createEntry(String user) {
+    public void createEntry(User user) {
         try {
-            wlock.lock();
-            this.map.put(user, new TreeSet<>());
+            directoryWait.lock(wlock);
+            int id = user.getId();
+            if (id >= this.users.length) {
+                int capacity = Math.max(this.users.length * 2, id + 1);
+                this.users = Arrays.copyOf(this.users, capacity);
+                for (Epoch epoch : this.ring)
+                    if (epoch != null) epoch.sets = Arrays.copyOf(epoch.sets, capacity);
+            }
+            this.users[id] = user;
         } finally {
             wlock.unlock();
         }
     }
 
     /**
-     * Retorna a lista de todos os User que já entraram em contacto
-     * com um determinado User
-     * @param user username de um determinado User
-     * @return lista de usernames que já entraram em contacto com o user
+     * Retorna uma cópia da lista de todos os User que entraram em contacto
+     * com um determinado User durante a janela de exposição
+     * @param user User
+     * @return cópia da lista, vazia caso o user não tenha contactos
      */
-    public Collection<User> getListUser(String user) {
+    public Collection<User> getContacts(User user) {
         try {
-            rlock.lock();
-            return this.map.get(user);
+            directoryWait.lockRead(lock);
+            Collection<User> r = new ArrayList<>();
+            for (int c : contactIds(user.getId())) r.add(this.users[c]);
+            return r;
         } finally {
             rlock.unlock();
         }
     }
 
     /**
-     * Quando um User muda de localização, poderá entrar em contacto com
-     * novos Users, e por isso é necessário que todos esses registos sejam
-     * atualizados. Por iss, cada username é adicionado nos registos de
-     * todos os outros usernames. Por exemplo, numa lista [A,B,C,D],
-     * o username A seria adicionado ao username B,C e D; e o mesmo processo
-     * aconteceria para os restantes elementos da lista
-     * @param list lista de Users que estão numa certa localização
-     */
-    public void createNewRegisters(Collection<User> list) {
+     * Retorna os ids de todos os User que entraram em contacto com um
+     * determinado User durante a janela de exposição
+     * @param user User
+     * @return cópia dos ids, vazia caso o user não tenha contactos
+     */
+    public int[] getContactIds(User user) {
+        try {
+            directoryWait.lockRead(lock);
+            return contactIds(user.getId());
+        } finally {
+            rlock.unlock();
+        }
+    }
+
+    /**
+     * Retorna os ids dos User que entraram em contacto com um determinado
+     * User numa época
+     * @param user User
+     * @param epoch número da época
+     * @return cópia dos ids, vazia caso o user não tenha contactos nessa época
+     */
+    public int[] getContactIds(User user, long epoch) {
         try {
-            wlock.lock();
-            for (User u : list) {
-                Set<User> set = this.map.get(u.getUsername());
-                //set = set.stream().filter(user -> !user.equals(u)).map(User::clone).map(User::clone).collect(Collectors.toSet());
-                for (User user : list)
-                    if (!user.equals(u)) set.add(user);
+            directoryWait.lockRead(lock);
+            int id = user.getId();
+            Epoch e = this.ring[slot(epoch)];
+            if (e == null || e.number != epoch || id >= e.sets.length) return new int[0];
+            ReentrantLock stripe = stripe(id);
+            try {
+                stripesWait.lock(stripe);
+                IntSet set = e.sets[id];
+                return set == null ? new int[0] : set.toArray();
+            } finally {
+                stripe.unlock();
             }
+        } finally {
+            rlock.unlock();
+        }
+    }
+
+    /**
+     * União dos contactos de um User nas épocas dentro da janela. Deve ser
+     * chamado com o read lock adquirido.
+     */
+    private int[] contactIds(int id) {
+        long oldest = currentEpoch() - this.ring.length + 1;
+        ReentrantLock stripe = stripe(id);
+        try {
+            stripesWait.lock(stripe);
+            IntSet single = null, union = null;
+            for (Epoch e : this.ring) {
+                if (e == null || e.number < oldest || id >= e.sets.length || e.sets[id] == null) continue;
+                if (single == null) single = e.sets[id];
+                else {
+                    if (union == null) {
+                        union = new IntSet();
+                        single.forEach(union::add);
+                    }
+                    e.sets[id].forEach(union::add);
+                }
+            }
+            if (union != null) return union.toArray();
+            return single == null ? new int[0] : single.toArray();
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Repõe os contactos de um User numa época, ao recuperar o estado
+     * guardado. Os contactos não são comunicados ao Journal, e os de épocas
+     * que já saíram da janela são ignorados.
+     * @param epoch número da época
+     * @param user User, com entrada já criada (ver {@link #createEntry})
+     * @param contacts ids dos contactos do User nessa época
+     */
+    public void restore(long epoch, User user, IntSet contacts) {
+        Epoch e = epoch(epoch);
+        if (e == null) return;
+        try {
+            directoryWait.lock(wlock);
+            e.sets[user.getId()] = contacts;
         } finally {
             wlock.unlock();
         }
     }
 
     /**
-     * Procura se há pelo menos um user infetado numa collection de users
-     * @param users collection onde se vai procurar o infetado
-     * @return true se houver pelo menos um user infetado
+     * Quando um User muda de localização, poderá entrar em contacto com
+     * novos Users, e por isso é necessário que os registos sejam
+     * atualizados. Como os Users que já lá estavam já se registaram entre
+     * si, basta acrescentar as arestas entre o User que chega e cada um dos
+     * restantes. Por exemplo, se D chega a uma localização com [A,B,C],
+     * D é adicionado aos registos de A, B e C, e estes aos registos de D.
+     * Os contactos ficam registados na época atual.
+     * @param user User que chegou à localização
+     * @param list lista de Users que estão nessa localização
+     */
+    public void createNewRegisters(User user, Collection<User> list) {
+        createNewRegisters(currentEpoch(), List.of(user), list);
+    }
+
+    /**
+     * Versão de {@link #createNewRegisters(User, Collection)} para vários
+     * Users que chegaram à mesma localização: acrescenta as arestas entre
+     * cada um deles e cada um dos Users lá presentes, adquirindo o read lock
+     * uma única vez.
+     * @param arrivals Users que chegaram à localização
+     * @param list lista de Users que estão nessa localização
+     */
+    public void createNewRegisters(Collection<User> arrivals, Collection<User> list) {
+        createNewRegisters(currentEpoch(), arrivals, list);
+    }
+
+    /**
+     * Versão de {@link #createNewRegisters(Collection, Collection)} que
+     * regista os contactos numa dada época, usada também ao recuperar o
+     * estado guardado. Os contactos de uma época que já saiu da janela são
+     * ignorados.
+     * @param epoch número da época
+     * @param arrivals Users que chegaram à localização
+     * @param list lista de Users que estão nessa localização
      */
-    public boolean hasInfected(Collection<User> users) {
-        boolean r = false;
-        for(User u : users) {
-            if (u != null && u.isInfected()) {
-                users.remove(u);
-                r = true;
+    public void createNewRegisters(long epoch, Collection<User> arrivals, Collection<User> list) {
+        Epoch e = epoch(epoch);
+        if (e == null) return;
+        try {
+            directoryWait.lockRead(lock);
+            // a época pode ter sido descartada entretanto, caso a janela seja de uma só época
+            if (this.ring[slot(epoch)] != e) return;
+            for (User user : arrivals) {
+                int id = user.getId();
+                for (User other : list) {
+                    int otherId = other.getId();
+                    if (otherId == id) continue;
+                    addEdge(e, id, otherId);
+                    addEdge(e, otherId, id);
+                }
+                this.journal.contacts(epoch, user, list);
             }
+        } finally {
+            rlock.unlock();
         }
+    }
+
+    /**
+     * Quando um User comunica que está infetado, cada um dos seus contactos
+     * dentro da janela de exposição fica com uma exposição pendente (ver
+     * {@link User#addExposure()}).
+     * Assim, o custo de percorrer os contactos é pago uma única vez, na
+     * infeção, e verificar se um User tem notificações passa a ser apenas
+     * consultar o seu contador.
+     * As exposições são comunicadas ao Journal depois de marcadas, pelo que,
+     * caso o servidor reinicie, uma exposição pode voltar a ser notificada,
+     * mas nunca fica por notificar.
+     * @param infected User infetado
+     * @return os contactos que foram marcados
+     */
+    public Collection<User> markExposed(User infected) {
+        Collection<User> r = getContacts(infected);
+        expose(r);
         return r;
     }
-}
\ No newline at end of file
+
+    /**
+     * Marca uma exposição pendente em cada um de vários Users, comunicando-as
+     * ao Journal. Num cluster, é usado pelo nó casa dos contactos de um User
+     * infetado cujos contactos foram registados noutro nó.
+     * @param users Users expostos
+     */
+    public void expose(Collection<User> users) {
+        for (User user : users) user.addExposure();
+        if (!users.isEmpty()) this.journal.exposed(users);
+    }
+
+    private ReentrantLock stripe(int id) {
+        return this.stripes[id & (this.stripes.length - 1)];
+    }
+
+    private int slot(long epoch) {
+        return (int) Math.floorMod(epoch, (long) this.ring.length);
+    }
+
+    /**
+     * Devolve a época com um dado número, ocupando a posição da época mais
+     * antiga do anel caso ainda não exista. Não deve ser chamado com o read
+     * lock adquirido.
+     * @param number número da época
+     * @return a época, ou null caso já tenha saído da janela
+     */
+    private Epoch epoch(long number) {
+        Epoch e = this.current;
+        if (e != null && e.number == number) return e;
+        if (number < currentEpoch() - this.ring.length + 1) return null;
+        try {
+            directoryWait.lock(wlock);
+            e = this.ring[slot(number)];
+            if (e != null && e.number > number) return null;
+            if (e == null || e.number < number) this.ring[slot(number)] = e = new Epoch(number, this.users.length);
+            if (this.current == null || number > this.current.number) this.current = e;
+            return e;
+        } finally {
+            wlock.unlock();
+        }
+    }
+
+    /**
+     * Acrescenta um contacto ao conjunto de um User numa época. Deve ser
+     * chamado com o read lock adquirido.
+     */
+    private void addEdge(Epoch epoch, int id, int contact) {
+        ReentrantLock stripe = stripe(id);
+        try {
+            stripesWait.lock(stripe);
+            IntSet set = epoch.sets[id];
+            if (set == null) epoch.sets[id] = set = new IntSet();
+            set.add(contact);
+        } finally {
+            stripe.unlock();
+        }
+    }
+}
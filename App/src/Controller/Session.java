@@ -0,0 +1,286 @@
+package Controller;
+
+import Protocol.Frame;
+import User.User;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe Session
+ * Estado de uma conexão entre um cliente e o servidor, independente da
+ * forma como o servidor lê e escreve no socket. Guarda a versão do
+ * protocolo binário acordada (0 enquanto a sessão estiver no protocolo
+ * textual) e se a sessão continua aberta.
+ * No protocolo binário, as Frames são enviadas através de
+ * {@link #send(Frame)}, que pode ser chamado por qualquer thread: tanto
+ * pela que atende os pedidos da sessão como por outras que lhe queiram
+ * enviar uma notificação. As notificações podem também ser entregues
+ * através de {@link #post(Object, Frame, Runnable)}, que as escreve numa
+ * virtual thread própria da sessão, para que um cliente lento a ler não
+ * atrase quem as originou.
+ * Guarda ainda os ids dos Users cujo username já foi enviado ao cliente,
+ * para que respostas seguintes os possam referir apenas pelo id. Este
+ * dicionário só é usado pela thread que atende os pedidos da sessão.
+ * Da mesma forma, guarda os Users autenticados na sessão: cada login bem
+ * sucedido atribui ao User um identificador local à sessão, com o qual os
+ * pedidos seguintes o referem. Assim, esses pedidos não procuram o User
+ * pelo username no UsersController, e um cliente só pode agir em nome dos
+ * Users cuja password conhece.
+ * Num cluster, as sessões abertas por outros nós identificam-se com o
+ * segredo do cluster e passam a poder enviar as mensagens entre nós (ver
+ * {@link #isPeer()}).
+ */
+public class Session {
+    /**
+     * Forma como o servidor escreve uma Frame no socket da sessão
+     */
+    public interface Sender {
+        void send(Frame frame) throws IOException;
+    }
+
+    /** Número máximo de notificações por escrever antes de a sessão ser terminada */
+    public static final int MAX_PENDING = 256;
+
+    private final Sender sender;
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Map<Object, Pending> pending = new LinkedHashMap<>();
+    private boolean draining = false;
+    private final List<Runnable> onClose = new CopyOnWriteArrayList<>();
+    private final BitSet dictionary = new BitSet();
+    private final List<User> users = new ArrayList<>();
+    private final Map<String, Integer> handles = new HashMap<>();
+    private volatile int version;
+    private volatile boolean open;
+    private volatile boolean peer;
+    private boolean started;
+
+    /**
+     * Construtor parametrizado da classe Session
+     * Uma sessão começa aberta e no protocolo textual.
+     * @param sender forma de escrever Frames no socket; deve ser thread-safe
+     */
+    public Session(Sender sender) {
+        this.sender = sender;
+        this.version = 0;
+        this.open = true;
+        this.started = false;
+    }
+
+    /**
+     * Marca o início do atendimento da sessão. Só é chamado pela thread que
+     * atende os pedidos da sessão.
+     * @return true na primeira chamada, false nas seguintes
+     */
+    public boolean start() {
+        if (this.started) return false;
+        this.started = true;
+        return true;
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * @return true caso a sessão use o protocolo binário
+     */
+    public boolean isBinary() {
+        return this.version > 0;
+    }
+
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * @return true caso a sessão tenha sido aberta por outro nó do cluster
+     */
+    public boolean isPeer() {
+        return this.peer;
+    }
+
+    public void setPeer(boolean peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * Envia uma Frame ao cliente
+     * @param frame frame a enviar
+     * @throws IOException caso a sessão já esteja fechada ou a escrita falhe
+     */
+    public void send(Frame frame) throws IOException {
+        if (!this.open) throw new IOException("Sessão terminada");
+        this.sender.send(frame);
+    }
+
+    /**
+     * Notificação à espera de ser escrita
+     */
+    private static final class Pending {
+        private final Frame frame;
+        // ação a executar depois de a frame ser escrita, ou null
+        private final Runnable onSent;
+
+        Pending(Frame frame, Runnable onSent) {
+            this.frame = frame;
+            this.onSent = onSent;
+        }
+    }
+
+    /**
+     * Envia uma notificação ao cliente sem esperar pela escrita. As
+     * notificações são escritas pela ordem em que foram pedidas; uma
+     * notificação com a mesma chave de outra que ainda não foi escrita é
+     * juntada a essa. Caso a escrita falhe, ou o cliente deixe acumular
+     * mais de {@link #MAX_PENDING} notificações, a sessão é terminada e as
+     * notificações por escrever são descartadas, sem executar as ações.
+     * @param key chave da notificação
+     * @param frame frame a enviar
+     * @param onSent ação a executar depois de a frame ser escrita, ou null
+     * @return false caso a notificação tenha sido descartada
+     */
+    public boolean post(Object key, Frame frame, Runnable onSent) {
+        boolean start;
+        boolean full = false;
+        pendingLock.lock();
+        try {
+            if (!this.open) return false;
+            if (this.pending.containsKey(key)) return true;
+            full = this.pending.size() >= MAX_PENDING;
+            if (!full) this.pending.put(key, new Pending(frame, onSent));
+            start = !full && !this.draining;
+            if (start) this.draining = true;
+        } finally {
+            pendingLock.unlock();
+        }
+        if (full) {
+            close();
+            return false;
+        }
+        if (start) Thread.ofVirtual().start(this::drain);
+        return true;
+    }
+
+    /**
+     * Ciclo da thread que escreve as notificações, que termina quando já
+     * não houver nenhuma por escrever
+     */
+    private void drain() {
+        while (true) {
+            Pending next;
+            pendingLock.lock();
+            try {
+                Iterator<Pending> it = this.pending.values().iterator();
+                if (!this.open || !it.hasNext()) {
+                    this.pending.clear();
+                    this.draining = false;
+                    return;
+                }
+                next = it.next();
+                it.remove();
+            } finally {
+                pendingLock.unlock();
+            }
+            try {
+                send(next.frame);
+            } catch (IOException e) {
+                close();
+                continue;
+            }
+            try {
+                if (next.onSent != null) next.onSent.run();
+            } catch (RuntimeException e) {
+                // por exemplo, o Journal deixou de guardar as alterações
+                e.printStackTrace();
+                close();
+            }
+        }
+    }
+
+    /**
+     * Acrescenta um User ao dicionário de usernames já enviados ao cliente
+     * @param id id do User
+     * @return true caso o username ainda não tivesse sido enviado
+     */
+    public boolean addToDictionary(int id) {
+        if (this.dictionary.get(id)) return false;
+        this.dictionary.set(id);
+        return true;
+    }
+
+    /**
+     * Associa à sessão um User autenticado
+     * @param user User
+     * @return identificador do User na sessão, o mesmo caso já estivesse associado
+     */
+    public int login(User user) {
+        Integer handle = this.handles.get(user.getUsername());
+        if (handle != null) return handle;
+        this.users.add(user);
+        this.handles.put(user.getUsername(), this.users.size() - 1);
+        return this.users.size() - 1;
+    }
+
+    /**
+     * @param name username
+     * @return identificador do User na sessão, ou -1 caso não esteja autenticado nela
+     */
+    public int getHandle(String name) {
+        return this.handles.getOrDefault(name, -1);
+    }
+
+    /**
+     * @param handle identificador do User na sessão
+     * @return o User, ou null caso o identificador não tenha sido atribuído
+     */
+    public User getUser(int handle) {
+        return handle >= 0 && handle < this.users.size() ? this.users.get(handle) : null;
+    }
+
+    /**
+     * @param name username
+     * @return o User, ou null caso não esteja autenticado nesta sessão
+     */
+    public User getUser(String name) {
+        Integer handle = this.handles.get(name);
+        return handle != null ? this.users.get(handle) : null;
+    }
+
+    /**
+     * Regista uma ação a executar quando a sessão terminar
+     * @param action ação
+     */
+    public void onClose(Runnable action) {
+        this.onClose.add(action);
+        if (!this.open && this.onClose.remove(action)) action.run();
+    }
+
+    /**
+     * Retira uma ação registada com {@link #onClose(Runnable)}
+     * @param action ação
+     */
+    public void removeOnClose(Runnable action) {
+        this.onClose.remove(action);
+    }
+
+    /**
+     * Marca a sessão como terminada, executando as ações registadas
+     */
+    public void close() {
+        this.open = false;
+        for (Runnable action : this.onClose)
+            if (this.onClose.remove(action)) action.run();
+    }
+}
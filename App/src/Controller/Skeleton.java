@@ -2,6 +2,10 @@ package Controller;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Interface Controller.Skeleton
@@ -24,5 +28,44 @@ public interface Skeleton {
      * @param dos output
      * @throws Exception exceção
      */
-    void handle(DataInputStream dis, DataOutputStream dos) throws Exception;
+    default void handle(DataInputStream dis, DataOutputStream dos) throws Exception {
+        Lock lock = new ReentrantLock();
+        Session session = new Session(frame -> {
+            lock.lock();
+            try {
+                frame.writeTo(dos);
+                dos.flush();
+            } finally {
+                lock.unlock();
+            }
+        });
+        try {
+            while (handleRequest(session, dis, dos));
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Atende um único pedido de uma sessão, lendo-o do input e escrevendo
+     * a resposta, caso exista, no output (protocolo textual) ou através de
+     * {@link Session#send} (protocolo binário)
+     * @param session estado da sessão a que o pedido pertence
+     * @param dis input
+     * @param dos output
+     * @return true caso a sessão continue aberta
+     * @throws Exception exceção
+     */
+    boolean handleRequest(Session session, DataInputStream dis, DataOutputStream dos) throws Exception;
+
+    /**
+     * Averigua se um buffer contém já um pedido completo da sessão, sem o
+     * consumir. Serve os servidores não bloqueantes, que só devem chamar
+     * {@link #handleRequest} quando o pedido inteiro tiver chegado.
+     * @param session estado da sessão a que os bytes pertencem
+     * @param buf bytes recebidos, entre a posição e o limite do buffer
+     * @return número de bytes do próximo pedido, ou -1 caso ainda esteja incompleto
+     * @throws IOException caso os bytes não correspondam a um pedido válido
+     */
+    int requestLength(Session session, ByteBuffer buf) throws IOException;
 }
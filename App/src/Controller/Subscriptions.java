@@ -0,0 +1,91 @@
+package Controller;
+
+import Protocol.Frame;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classe Subscriptions
+ * Associa cada username às sessões que pediram para ser notificadas em
+ * nome desse utilizador, para que o servidor possa enviar notificações
+ * sem esperar que o cliente as peça. Uma sessão deixa de estar subscrita
+ * quando termina.
+ * As notificações são entregues através de
+ * {@link Session#post(Object, Frame, Runnable)}, para que uma sessão lenta
+ * a ler não atrase a resposta ao pedido que as originou; as notificações
+ * de um utilizador ainda por escrever numa sessão são juntadas numa só.
+ */
+public class Subscriptions {
+    private final Map<String, Map<Session, Subscription>> map = new ConcurrentHashMap<>();
+
+    /**
+     * Subscrição de um utilizador numa sessão
+     */
+    private static final class Subscription {
+        // frame enviada a cada notificação, que identifica o utilizador na sessão
+        private final Frame frame;
+        // ação registada para cancelar a subscrição quando a sessão terminar
+        private final Runnable hook;
+
+        Subscription(Frame frame, Runnable hook) {
+            this.frame = frame;
+            this.hook = hook;
+        }
+    }
+
+    /**
+     * Subscreve as notificações de um utilizador numa sessão. Caso já
+     * estivesse subscrito nela, mantém-se a subscrição anterior.
+     * @param user username
+     * @param session sessão que recebe as notificações
+     * @param frame frame a enviar a cada notificação
+     */
+    public void subscribe(String user, Session session, Frame frame) {
+        Subscription subscription = new Subscription(frame, () -> remove(user, session));
+        Subscription[] previous = new Subscription[1];
+        this.map.compute(user, (k, sessions) -> {
+            if (sessions == null) sessions = new ConcurrentHashMap<>();
+            previous[0] = sessions.putIfAbsent(session, subscription);
+            return sessions;
+        });
+        if (previous[0] == null) session.onClose(subscription.hook);
+    }
+
+    /**
+     * Cancela a subscrição das notificações de um utilizador numa sessão
+     * @param user username
+     * @param session sessão
+     */
+    public void unsubscribe(String user, Session session) {
+        Subscription subscription = remove(user, session);
+        if (subscription != null) session.removeOnClose(subscription.hook);
+    }
+
+    /**
+     * @return a subscrição retirada, ou null caso a sessão não estivesse subscrita
+     */
+    private Subscription remove(String user, Session session) {
+        Subscription[] removed = new Subscription[1];
+        this.map.computeIfPresent(user, (k, sessions) -> {
+            removed[0] = sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Notifica todas as sessões subscritas por um utilizador, sem esperar
+     * pela escrita
+     * @param user username
+     * @param onSent ação a executar depois de cada escrita bem sucedida
+     * @return true caso pelo menos uma sessão aberta vá receber a notificação
+     */
+    public boolean push(String user, Runnable onSent) {
+        boolean r = false;
+        Map<Session, Subscription> sessions = this.map.get(user);
+        if (sessions != null)
+            for (Map.Entry<Session, Subscription> entry : sessions.entrySet())
+                if (entry.getKey().post(user, entry.getValue().frame, onSent)) r = true;
+        return r;
+    }
+}
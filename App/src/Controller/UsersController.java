@@ -1,65 +1,225 @@
 package Controller;
 
+import Metrics.LockStats;
 import User.User;
 import User.Location;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Classe Controller
  * Pretende guardar o conjunto de utilizadores normais da aplicação.
- * Dispõe de um Map para esse efeito e, para além disso, de um ReentrantLock
- * caso seja necessário proceder a alterações no Map de forma concorrente.
+ * Dispõe de um ConcurrentHashMap para esse efeito, pelo que as procuras
+ * por username não adquirem nenhum lock. Os registos são feitos com uma
+ * única operação atómica sobre o Map, que só cria o User caso o username
+ * não exista; a atribuição do id e a comunicação ao {@link Journal} são
+ * feitas com um lock próprio, para que os ids sejam contíguos e cheguem
+ * ao Journal pela ordem em que foram atribuídos. Só a exportação de todos
+ * os Users os ordena (ver {@link #getUsers()}).
+ * Mantém ainda um índice de ocupação por localização, para que as
+ * contagens não obriguem a percorrer todos os Users. Cada localização é
+ * protegida por um de vários locks
+ * (stripes), escolhido pelo hash da localização, pelo que deslocações entre
+ * localizações não relacionadas decorrem em paralelo. A localização de um
+ * User só é alterada com o lock da localização antiga e o da nova
+ * adquiridos, sempre por ordem crescente de stripe para evitar deadlocks.
+ * Sempre que uma localização fica vazia, é avisado o observador registado
+ * com {@link #setOnCellEmptied}, já depois de libertados os locks.
+ * Cada alteração ao conteúdo de uma localização incrementa a versão do mapa
+ * e fica registada num histórico circular, para que um cliente que já
+ * conhece o mapa numa dada versão possa pedir apenas as localizações que
+ * mudaram desde então (ver {@link #mapDelta(long, int)}). Os bits mais
+ * significativos da versão identificam o processo (época), escolhida ao
+ * acaso no arranque, já que o histórico não sobrevive a um reinício: as
+ * versões conhecidas de um processo anterior nunca pertencem ao histórico
+ * do atual, mesmo depois de repor o estado a partir do Journal.
+ * Os registos, deslocações, infeções e notificações são ainda comunicados
+ * ao {@link Journal} definido com {@link #setJournal}, com os mesmos locks
+ * adquiridos.
+ * O tempo de espera por cada um destes locks é medido (ver
+ * {@link #getLockStats()}).
+ * Num cluster (ver {@link Cluster.Partition}), o índice de ocupação guarda
+ * apenas as localizações deste nó (ver {@link #setLocalCells}): um User
+ * que se desloca para uma localização de outro nó sai da sua localização
+ * neste, mas não entra em nenhuma.
  */
 public class UsersController {
+    private static final int LOG_SIZE = 4096;
+    /** Número de bits da versão do mapa abaixo da época */
+    private static final int EPOCH_SHIFT = 40;
+
     private final Map<String, User> mapUsers;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock rlock = lock.readLock();
-    private final Lock wlock = lock.writeLock();
+    private final Map<Location, Set<User>> cells;
+    private int nextId = 0;
+    private volatile Consumer<Location> onCellEmptied = loc -> {};
+    private volatile Predicate<Location> localCells = loc -> true;
+    private volatile Journal journal = Journal.NONE;
+    private final ReentrantLock registerLock = new ReentrantLock();
+    private final ReentrantLock[] stripes;
+    private final Location[] changes = new Location[LOG_SIZE];
+    private long version = (1 + ThreadLocalRandom.current().nextLong((1L << (63 - EPOCH_SHIFT)) - 1)) << EPOCH_SHIFT;
+    private final ReentrantLock logLock = new ReentrantLock();
+    private final LockStats registerWait = new LockStats("users.register");
+    private final LockStats cellsWait = new LockStats("users.cells");
+    private final LockStats logWait = new LockStats("users.log");
 
     /**
      * Construtor por omissão da classe Controller
      */
     public UsersController() {
-        this.mapUsers = new TreeMap<>();
+        this(64);
     }
 
     /**
-     * Verifica se o utilizador já existe no map
-     * @param user username
-     * @return true caso o utilizador já exista, false caso contrário
+     * Construtor parametrizado da classe Controller
+     * @param stripes número de locks que protegem o índice de ocupação
+     *                (arredondado para uma potência de 2)
      */
-    public boolean existsUser(String user) {
-        try {
-            rlock.lock();
-            return this.mapUsers.get(user) != null;
-        } finally {
-            rlock.unlock();
-        }
+    public UsersController(int stripes) {
+        this.mapUsers = new ConcurrentHashMap<>();
+        this.cells = new ConcurrentHashMap<>();
+        this.stripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < this.stripes.length; i++) this.stripes[i] = new ReentrantLock();
+    }
+
+    private int stripe(Location loc) {
+        int h = loc.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (this.stripes.length - 1);
+    }
+
+    /**
+     * Adquire os locks de duas localizações por ordem crescente de stripe
+     */
+    private void lockCells(int a, int b) {
+        this.cellsWait.lock(this.stripes[Math.min(a, b)]);
+        if (a != b) this.cellsWait.lock(this.stripes[Math.max(a, b)]);
+    }
+
+    private void unlockCells(int a, int b) {
+        if (a != b) this.stripes[Math.max(a, b)].unlock();
+        this.stripes[Math.min(a, b)].unlock();
+    }
+
+    /**
+     * @return estatísticas das esperas pelos locks dos registos, das
+     * localizações e do histórico do mapa
+     */
+    public List<LockStats> getLockStats() {
+        return List.of(this.registerWait, this.cellsWait, this.logWait);
+    }
+
+    /**
+     * Define o Journal que recebe as alterações ao estado
+     * @param journal journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Define a ação a executar sempre que uma localização fica vazia
+     * @param onCellEmptied ação que recebe a localização que ficou vazia
+     */
+    public void setOnCellEmptied(Consumer<Location> onCellEmptied) {
+        this.onCellEmptied = onCellEmptied;
+    }
+
+    /**
+     * Define as localizações guardadas no índice de ocupação. Deve ser
+     * chamado antes de ser registado ou reposto qualquer User.
+     * @param localCells condição das localizações deste nó
+     */
+    public void setLocalCells(Predicate<Location> localCells) {
+        this.localCells = localCells;
     }
 
     /**
      * Regista um User no Map apenas se o username não seja igual
-     * ao de outro User
+     * ao de outro User. Cada User registado recebe o id seguinte
      * @param name username
      * @param pw password
+     * @return o User registado, ou null caso o username já exista
      */
-    public boolean register(String name, String pw, boolean privileged) {
-        try {
-            wlock.lock();
-            boolean success = false;
-            User user = new User(name, pw, privileged);
-            if (!existsUser(name)) {
-                this.mapUsers.put(name, user);
-                success = true;
+    public User register(String name, String pw, boolean privileged) {
+        return register(name, pw, privileged, user -> {});
+    }
+
+    /**
+     * Regista um User no Map apenas se o username não seja igual ao de
+     * outro User, executando uma ação sobre o novo User antes de ele ficar
+     * visível para as restantes threads. Cada User registado recebe o id
+     * seguinte.
+     * @param name username
+     * @param pw password, ou null para a cópia de um User de outro nó do
+     *           cluster, que nunca pode ser autenticada
+     * @param onCreated ação executada sobre o novo User, por exemplo para
+     *                  criar a sua entrada no {@link RegisterUsers}
+     * @return o User registado, ou null caso o username já exista
+     */
+    public User register(String name, String pw, boolean privileged, Consumer<User> onCreated) {
+        if (this.mapUsers.containsKey(name)) return null;
+        User[] created = new User[1];
+        this.mapUsers.computeIfAbsent(name, k -> {
+            User user;
+            try {
+                registerWait.lock(registerLock);
+                user = new User(this.nextId++, name, pw, privileged);
+                this.journal.register(user);
+            } finally {
+                registerLock.unlock();
             }
-            return success;
+            onCreated.accept(user);
+            return created[0] = user;
+        });
+        return created[0];
+    }
+
+    /**
+     * Repõe um User, já com a sua localização, ao recuperar o estado
+     * guardado. O User não é comunicado ao Journal.
+     * @param user User
+     */
+    public void restore(User user) {
+        try {
+            registerWait.lock(registerLock);
+            this.mapUsers.put(user.getUsername(), user);
+            this.nextId = Math.max(this.nextId, user.getId() + 1);
+        } finally {
+            registerLock.unlock();
+        }
+        Location loc = user.getLocation();
+        if (loc.equals(Location.NONE) || !this.localCells.test(loc)) return;
+        ReentrantLock stripe = this.stripes[stripe(loc)];
+        try {
+            cellsWait.lock(stripe);
+            this.cells.computeIfAbsent(loc, k -> new HashSet<>()).add(user);
         } finally {
-            wlock.unlock();
+            stripe.unlock();
         }
     }
 
+    /**
+     * Procura um User pelo seu username
+     * @param name username
+     * @return o User, ou null caso não exista
+     */
+    public User getUser(String name) {
+        return this.mapUsers.get(name);
+    }
+
+    /**
+     * @return todos os Users registados, por ordem de id
+     */
+    public List<User> getUsers() {
+        List<User> r = new ArrayList<>(this.mapUsers.values());
+        r.sort(Comparator.comparingInt(User::getId));
+        return r;
+    }
+
     /**
      * Autenticação de um User
      * @param name username
@@ -67,55 +227,190 @@ public class UsersController {
      * @return true caso as credenciais correspondam, false caso contrário
      */
     public boolean login(String name, String pw) {
-        try {
-            rlock.lock();
-            boolean r = false;
-            User user = this.mapUsers.get(name);
-            if (user != null) r = user.login(pw);
-            return r;
-        } finally {
-            rlock.unlock();
-        }
+        return authenticate(name, pw) != null;
+    }
 
+    /**
+     * Autenticação de um User, devolvendo-o para que os pedidos seguintes o
+     * possam usar diretamente, sem voltar a procurá-lo pelo username
+     * @param name username
+     * @param pw password
+     * @return o User caso as credenciais correspondam, null caso contrário
+     */
+    public User authenticate(String name, String pw) {
+        User user = this.mapUsers.get(name);
+        return user != null && user.login(pw) ? user : null;
     }
 
     /**
-     * Procura no mapa de users os users que estão numa certa localização
+     * Procura no índice de ocupação os users que estão numa certa localização
      * @param loc localizacao a procurar
      * @return uma collection com os identificadores dos users que estão na localização dada
      */
     public Collection<User> getNewRegUsers(Location loc) {
+        ReentrantLock stripe = this.stripes[stripe(loc)];
         try {
-            rlock.lock();
-            Collection<User> list = new ArrayList<>();
-            for (Map.Entry<String, User> entry : mapUsers.entrySet())
-                if (entry.getValue().locEquals(loc)) list.add(entry.getValue());
-            return list;
+            cellsWait.lock(stripe);
+            Set<User> cell = this.cells.get(loc);
+            return cell == null ? new ArrayList<>() : new ArrayList<>(cell);
         } finally {
-           rlock.unlock();
+            stripe.unlock();
         }
     }
 
     /**
-     * Adiciona uma localizacao à lista de localizacoes
-     * Usa um readLock porque só irá escrever no User e não no Map
-     * @param username identificador
-     * @param l localizacao
+     * Retira um User da célula onde se encontra, removendo a célula do
+     * índice caso fique vazia. Deve ser chamado com o lock dessa célula adquirido.
+     * @param user User a retirar
+     * @return a localização que ficou vazia, ou null caso ainda tenha Users
      */
-    public boolean setLocalizacao(String username, Location l, int n) {
+    private Location leaveCell(User user) {
+        Location old = user.getLocation();
+        Set<User> cell = this.cells.get(old);
+        if (cell == null || !cell.remove(user)) return null;
+        changed(old);
+        if (!cell.isEmpty()) return null;
+        this.cells.remove(old);
+        return old;
+    }
+
+    /**
+     * Regista no histórico uma alteração ao conteúdo de uma localização.
+     * Deve ser chamado com o lock dessa localização adquirido, depois de a
+     * alteração ter sido feita.
+     */
+    private void changed(Location loc) {
         try {
-            wlock.lock();
-            boolean success = false;
-            User user = this.mapUsers.get(username);
-            if (user != null && l.isInLimit(n)) {
-                user.setLocation(l);
-                success = true;
-            }
-            return success;
+            logWait.lock(logLock);
+            this.changes[(int) (++this.version & (LOG_SIZE - 1))] = loc;
         } finally {
-            wlock.unlock();
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Desloca um User para uma localizacao
+     * Não usa o lock do Map: adquire apenas os locks da localização antiga
+     * e da nova. Caso o User seja deslocado por outra thread entre a leitura
+     * da sua localização e a aquisição dos locks, a operação é repetida.
+     * A lista de Users devolvida é obtida com o lock da nova localização,
+     * pelo que, de dois Users que lá se encontrem, pelo menos o último a
+     * chegar vê o outro nessa lista.
+     * @param user User a deslocar
+     * @param l localizacao
+     * @param n número de linhas e colunas da grelha
+     * @return os Users presentes na nova localização (incluindo o próprio),
+     * ou null caso a localização não seja válida; vazia caso a localização
+     * seja de outro nó
+     */
+    public Collection<User> setLocalizacao(User user, Location l, int n) {
+        if (user == null || !l.isInLimit(n)) return null;
+        boolean local = this.localCells.test(l);
+        int to = stripe(l);
+        Location emptied;
+        Collection<User> present;
+        while (true) {
+            Location old = user.getLocation();
+            int from = stripe(old);
+            lockCells(from, to);
+            try {
+                if (!user.locEquals(old)) continue;
+                emptied = null;
+                if (!old.equals(l)) {
+                    emptied = leaveCell(user);
+                    user.setLocation(l);
+                    if (local) {
+                        this.cells.computeIfAbsent(l, k -> new HashSet<>()).add(user);
+                        changed(l);
+                    }
+                    this.journal.move(user, l);
+                }
+                present = local ? new ArrayList<>(this.cells.get(l)) : new ArrayList<>();
+                break;
+            } finally {
+                unlockCells(from, to);
+            }
+        }
+        if (emptied != null) this.onCellEmptied.accept(emptied);
+        return present;
+    }
+
+    /**
+     * Desloca vários Users de uma só vez, pela ordem em que são indicados.
+     * São adquiridos, por ordem crescente e uma única vez cada, os locks de
+     * todas as localizações envolvidas (as de partida e as de chegada); tal
+     * como em {@link #setLocalizacao}, caso algum dos Users seja deslocado
+     * por outra thread entretanto, a operação é repetida.
+     * Só conta a posição final de cada User: se o mesmo User surgir várias
+     * vezes, as localizações intermédias não ficam registadas como contacto.
+     * @param users Users a deslocar (as entradas a null são ignoradas)
+     * @param locs localizações, pela mesma ordem que os Users
+     * @param n número de linhas e colunas da grelha
+     * @return para cada localização de chegada válida, os Users que lá se
+     * encontram depois de aplicadas todas as deslocações; as entradas cuja
+     * localização não é válida não são aplicadas
+     */
+    public Map<Location, Collection<User>> setLocalizacoes(List<User> users, List<Location> locs, int n) {
+        Map<Location, Collection<User>> present = new HashMap<>();
+        List<Location> emptied = new ArrayList<>();
+        while (true) {
+            Map<User, Location> olds = new IdentityHashMap<>();
+            BitSet held = new BitSet(this.stripes.length);
+            for (int i = 0; i < users.size(); i++) {
+                User user = users.get(i);
+                Location l = locs.get(i);
+                if (user == null || !l.isInLimit(n)) continue;
+                Location old = olds.computeIfAbsent(user, User::getLocation);
+                held.set(stripe(old));
+                held.set(stripe(l));
+            }
+            for (int s = held.nextSetBit(0); s >= 0; s = held.nextSetBit(s + 1)) this.cellsWait.lock(this.stripes[s]);
+            try {
+                boolean moved = false;
+                for (Map.Entry<User, Location> entry : olds.entrySet())
+                    if (!entry.getKey().locEquals(entry.getValue())) moved = true;
+                if (moved) continue;
+                Set<Location> left = new HashSet<>();
+                for (int i = 0; i < users.size(); i++) {
+                    User user = users.get(i);
+                    Location l = locs.get(i);
+                    if (user == null || !l.isInLimit(n)) continue;
+                    present.put(l, null);
+                    if (user.locEquals(l)) continue;
+                    Location old = user.getLocation();
+                    if (leaveCell(user) != null) left.add(old);
+                    user.setLocation(l);
+                    if (this.localCells.test(l)) {
+                        this.cells.computeIfAbsent(l, k -> new HashSet<>()).add(user);
+                        changed(l);
+                    }
+                    this.journal.move(user, l);
+                }
+                for (Location loc : left)
+                    if (!this.cells.containsKey(loc)) emptied.add(loc);
+                for (Map.Entry<Location, Collection<User>> entry : present.entrySet()) {
+                    Set<User> cell = this.cells.get(entry.getKey());
+                    entry.setValue(cell == null ? new ArrayList<>() : new ArrayList<>(cell));
+                }
+                break;
+            } finally {
+                for (int s = held.previousSetBit(this.stripes.length - 1); s >= 0; s = held.previousSetBit(s - 1))
+                    this.stripes[s].unlock();
+            }
         }
+        for (Location loc : emptied) this.onCellEmptied.accept(loc);
+        return present;
+    }
 
+    /**
+     * Dá como notificadas as exposições pendentes de um User
+     * @param user User
+     * @return número de exposições que estavam pendentes
+     */
+    public int takeExposures(User user) {
+        int r = user.takeExposures();
+        if (r > 0) this.journal.notified(user);
+        return r;
     }
 
     /**
@@ -124,81 +419,110 @@ public class UsersController {
      * @return número de users
      */
     public int getNumberInLoc(Location loc) {
+        ReentrantLock stripe = this.stripes[stripe(loc)];
         try {
-            rlock.lock();
-            int r = 0;
-            for (Map.Entry<String, User> entry : this.mapUsers.entrySet()) {
-                User user = entry.getValue();
-                if (user.isInLocation(loc)) r++;
-            }
-            return r;
+            cellsWait.lock(stripe);
+            Set<User> cell = this.cells.get(loc);
+            return cell == null ? 0 : cell.size();
         } finally {
-            rlock.unlock();
+            stripe.unlock();
         }
     }
 
     /**
-     * Verifica se um determinadao user é privilegiado
-     * @param user identificador do user em questão
-     * @return true se o user for privilegiado
+     * Marca um User como infetado e retira-o da grelha
+     * @param u User
      */
-    public boolean isUserPrivileged(String user) {
-        try {
-            rlock.lock();
-            User u = this.mapUsers.get(user);
-            return u != null && u.isPrivileged();
-        } finally {
-            rlock.unlock();
-        }
-
+    public void commInfection(User u) {
+        removeFromGrid(u, true);
     }
 
     /**
-     * Altera o estado de um cliente para afetado
-     * @param user identificador do user em questão
+     * Retira um User da grelha, sem o marcar como infetado. Num cluster, é
+     * usado quando o User se desloca para uma localização de outro nó.
+     * @param u User
      */
-    public void commInfection(String user) {
-        try {
-            rlock.lock();
-            User u = this.mapUsers.get(user);
-            if (u != null) {
-                u.setInfected(true);
-                u.setLocation(new Location());
+    public void leave(User u) {
+        removeFromGrid(u, false);
+    }
+
+    private void removeFromGrid(User u, boolean infected) {
+        Location emptied;
+        while (true) {
+            Location old = u.getLocation();
+            ReentrantLock stripe = this.stripes[stripe(old)];
+            cellsWait.lock(stripe);
+            try {
+                if (!u.locEquals(old)) continue;
+                if (!infected && old.equals(Location.NONE)) return;
+                if (infected) u.setInfected(true);
+                emptied = leaveCell(u);
+                u.setLocation(Location.NONE);
+                if (infected) this.journal.infect(u);
+                else this.journal.move(u, Location.NONE);
+                break;
+            } finally {
+                stripe.unlock();
             }
-        } finally {
-            rlock.unlock();
         }
-
+        if (emptied != null) this.onCellEmptied.accept(emptied);
     }
 
 
 
     /**
-     * Envia o mapa de todas as localizações da grelha
-     * Começa por preencher o mapa com todas as localizações
-     * De seguida, percorre a lista de Users e verifica a localização
-     * mais atual de cada um. Com base nesse resultado, insere o username
-     * na respetiva localização (chave) do Mapa.
+     * Envia o mapa das localizações ocupadas da grelha
+     * Percorre apenas as células ocupadas do índice, pelo que o custo
+     * depende do número de localizações com Users e não da dimensão da
+     * grelha; as localizações vazias não fazem parte do mapa. Cada
+     * localização é lida com o seu lock, mas o mapa no seu todo não é uma
+     * fotografia instantânea da grelha.
      * @return Mapa em que a chave é a localização e o valor corresponde
      * a uma lista de Users que lá se encontram
      * @param n número de linhas e colunas da grelha
      */
     public Map<Location, Collection<String>> loadMap(int n) {
+        Map<Location, Collection<String>> map = new TreeMap<>();
+        for (Location loc : this.cells.keySet()) {
+            if (!loc.isInLimit(n)) continue;
+            Collection<String> names = new ArrayList<>();
+            for (User user : getNewRegUsers(loc)) names.add(user.getUsername());
+            if (!names.isEmpty()) map.put(loc, names);
+        }
+        return map;
+    }
+
+    /**
+     * Retorna as localizações da grelha cujo conteúdo mudou desde uma dada
+     * versão do mapa. A versão devolvida é lida antes das localizações, pelo
+     * que todas as alterações até ela estão refletidas no resultado; as
+     * posteriores voltam a ser enviadas no pedido seguinte.
+     * Caso a versão pedida já não esteja no histórico (ou seja de outra
+     * época, por exemplo depois de o servidor reiniciar), é devolvida uma
+     * fotografia com todas as localizações ocupadas.
+     * @param since última versão do mapa conhecida pelo cliente (0 caso não conheça nenhuma)
+     * @param n número de linhas e colunas da grelha
+     * @return localizações alteradas e versão correspondente
+     */
+    public MapDelta mapDelta(long since, int n) {
+        long version;
+        Collection<Location> locs = null;
         try {
-            rlock.lock();
-            Map<Location, Collection<String>> map = new TreeMap<>();
-            for (int i = 0; i < n; i++)
-                for (int j = 0; j < n; j++)
-                    map.put(new Location(String.valueOf(i), String.valueOf(j)), new ArrayList<>());
-            for (Map.Entry<String, User> entry : this.mapUsers.entrySet()) {
-                String username = entry.getKey();
-                Location loc = entry.getValue().getLocation();
-                Collection<String> usersLoc = map.get(loc);
-                if (usersLoc != null) usersLoc.add(username);
+            logWait.lock(logLock);
+            version = this.version;
+            if (since <= version && version - since <= LOG_SIZE) {
+                locs = new HashSet<>();
+                for (long v = since + 1; v <= version; v++)
+                    locs.add(this.changes[(int) (v & (LOG_SIZE - 1))]);
             }
-            return map;
         } finally {
-            rlock.unlock();
+            logLock.unlock();
         }
+        boolean full = locs == null;
+        if (full) locs = new ArrayList<>(this.cells.keySet());
+        Map<Location, Collection<User>> map = new TreeMap<>();
+        for (Location loc : locs)
+            if (loc.isInLimit(n)) map.put(loc, getNewRegUsers(loc));
+        return new MapDelta(version, full, map);
     }
 }
\ No newline at end of file
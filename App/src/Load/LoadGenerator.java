@@ -0,0 +1,218 @@
+package Load;
+
+import Metrics.Histogram;
+import Server.Stub;
+import User.Location;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Classe LoadGenerator
+ * Gerador de carga sem interface, que simula milhares de Users contra um
+ * {@link Server.Server} já em execução, através do protocolo binário do
+ * {@link Stub}. Cada User simulado corre numa virtual thread: regista-se,
+ * autentica-se e, até ao fim do teste, escolhe aleatoriamente uma ação de
+ * acordo com os pesos de "load.mix" - mudar de localização (ver
+ * {@link Movement}), perguntar quantos Users estão numa localização,
+ * verificar se tem notificações, carregar o mapa ou comunicar que está
+ * infetado, depois do que deixa de participar.
+ * Os Users partilham "load.connections" conexões, onde os pedidos seguem
+ * em simultâneo. No fim, é apresentado, para cada comando, o número de
+ * pedidos, o débito e os percentis 50, 99 e 99.9 da latência.
+ * Com "load.rate" (pedidos por segundo de cada User) os pedidos seguem um
+ * horário fixo e a latência é medida a partir da hora a que o pedido
+ * devia ter sido feito, para que um servidor lento não reduza a carga sem
+ * que isso se note nos percentis. Com 0 (por omissão), cada User faz o
+ * pedido seguinte assim que recebe a resposta ao anterior.
+ * Por exemplo: java -Dload.users=5000 -Dload.seconds=60 Load.LoadGenerator
+ */
+public class LoadGenerator {
+    private static final String REGISTER = "register";
+    private static final String LOGIN = "login";
+    private static final String MOVE = "move";
+    private static final String HOW_MANY = "howmany";
+    private static final String NOTIFICATION = "notification";
+    private static final String LOAD_MAP = "loadmap";
+    private static final String INFECTION = "infection";
+
+    private final String host = System.getProperty("load.host", "localhost");
+    private final int port = Integer.getInteger("load.port", 12345);
+    private final int users = Integer.getInteger("load.users", 1000);
+    private final int connections = Integer.getInteger("load.connections", 16);
+    private final long seconds = Long.getLong("load.seconds", 30);
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+    private int n = Integer.getInteger("load.grid", 0);
+    private final Movement movement = Movement.valueOf(System.getProperty("load.movement", "walk").toUpperCase(Locale.ROOT));
+    private final String prefix = System.getProperty("load.prefix", "load" + Long.toString(System.currentTimeMillis(), 36) + "-");
+    private final long seed = Long.getLong("load.seed", 42);
+
+    private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+    private final String[] actions;
+    private final double[] weights;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder infections = new LongAdder();
+    private final LongAdder notified = new LongAdder();
+
+    /**
+     * Construtor por omissão da classe LoadGenerator, configurado com as
+     * propriedades "load.*" do sistema
+     */
+    public LoadGenerator() {
+        for (String command : List.of(REGISTER, LOGIN, MOVE, HOW_MANY, NOTIFICATION, LOAD_MAP, INFECTION))
+            this.latencies.put(command, new Histogram());
+        String[] mix = System.getProperty("load.mix", "move=60,howmany=15,notification=20,loadmap=4.9,infection=0.1").split(",");
+        this.actions = new String[mix.length];
+        this.weights = new double[mix.length];
+        double total = 0;
+        for (int i = 0; i < mix.length; i++) {
+            String[] entry = mix[i].split("=");
+            if (entry.length != 2 || !this.latencies.containsKey(entry[0].trim()))
+                throw new IllegalArgumentException("Entrada de load.mix inválida: " + mix[i]);
+            this.actions[i] = entry[0].trim();
+            total += Double.parseDouble(entry[1]);
+            this.weights[i] = total;
+        }
+        for (int i = 0; i < this.weights.length; i++) this.weights[i] /= total;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().run();
+    }
+
+    /**
+     * Corre o teste e apresenta os resultados
+     */
+    public void run() throws InterruptedException {
+        List<Stub> stubs = new ArrayList<>();
+        for (int i = 0; i < this.connections; i++) stubs.add(new Stub(this.host, this.port));
+        if (this.n <= 0) this.n = stubs.get(0).getGridSize();
+        System.out.printf("%d Users em %d conexões a %s:%d, durante %d s%n",
+                this.users, this.connections, this.host, this.port, this.seconds);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(this.seconds);
+        CountDownLatch done = new CountDownLatch(this.users);
+        for (int i = 0; i < this.users; i++) {
+            Stub stub = stubs.get(i % stubs.size());
+            int id = i;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    simulate(stub, id, deadline);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        while (!done.await(5, TimeUnit.SECONDS)) {
+            long total = 0;
+            for (Histogram h : this.latencies.values()) total += h.getCount();
+            System.out.printf("%5.0f s: %d pedidos, %d erros%n", (System.nanoTime() - start) / 1e9, total, this.errors.sum());
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        for (Stub stub : stubs) stub.killStub();
+        report(elapsed);
+    }
+
+    /**
+     * Ciclo de um User simulado
+     */
+    private void simulate(Stub stub, int id, long deadline) {
+        SplittableRandom random = new SplittableRandom(this.seed * 1_000_003 + id);
+        String name = this.prefix + id;
+        String pw = "pw" + id;
+        if (!stub.isConnected()) {
+            // a conexão nunca chegou a ser estabelecida
+            this.errors.increment();
+            return;
+        }
+        try {
+            if (!timed(REGISTER, System.nanoTime(), stub.registerAsync(name, pw, false))
+                    || !timed(LOGIN, System.nanoTime(), stub.loginAsync(name, pw))) {
+                this.errors.increment();
+                return;
+            }
+            Location loc = Movement.UNIFORM.next(null, this.n, random);
+            long interval = this.rate > 0 ? (long) (1e9 / this.rate) : 0;
+            // cada User começa num instante diferente do intervalo, para não chegarem todos juntos
+            long next = System.nanoTime() + (interval > 0 ? random.nextLong(interval) : 0);
+            while (true) {
+                long intended = interval > 0 ? next : System.nanoTime();
+                if (intended >= deadline) return;
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                next += interval;
+                switch (pick(random)) {
+                    case MOVE -> {
+                        loc = this.movement.next(loc, this.n, random);
+                        if (!timed(MOVE, intended, stub.changeLocAsync(name, loc))) this.errors.increment();
+                    }
+                    case HOW_MANY -> {
+                        if (timed(HOW_MANY, intended, stub.howManyInLocationAsync(Movement.UNIFORM.next(loc, this.n, random))) < 0)
+                            this.errors.increment();
+                    }
+                    case NOTIFICATION -> {
+                        if (timed(NOTIFICATION, intended, stub.notificationAsync(name))) this.notified.increment();
+                    }
+                    case LOAD_MAP -> {
+                        stub.loadMap();
+                        this.latencies.get(LOAD_MAP).record(System.nanoTime() - intended);
+                    }
+                    case INFECTION -> {
+                        // não há resposta: mede-se apenas o envio
+                        stub.commInfection(name);
+                        this.latencies.get(INFECTION).record(System.nanoTime() - intended);
+                        this.infections.increment();
+                        return;
+                    }
+                    default -> throw new IllegalStateException();
+                }
+            }
+        } catch (CompletionException e) {
+            // a conexão terminou (os pedidos síncronos do Stub tratam as suas próprias falhas de I/O)
+            this.errors.increment();
+        }
+    }
+
+    private String pick(SplittableRandom random) {
+        double r = random.nextDouble();
+        for (int i = 0; i < this.weights.length; i++)
+            if (r < this.weights[i]) return this.actions[i];
+        return this.actions[this.actions.length - 1];
+    }
+
+    /**
+     * Espera pela resposta a um pedido e regista a latência
+     * @param command comando
+     * @param intended instante a partir do qual a latência é medida
+     * @param res resposta
+     * @return resposta
+     */
+    private <T> T timed(String command, long intended, CompletableFuture<T> res) {
+        T r = res.join();
+        this.latencies.get(command).record(System.nanoTime() - intended);
+        return r;
+    }
+
+    private void report(double elapsed) {
+        System.out.printf("%n%-14s %10s %10s %10s %10s %10s %10s%n",
+                "comando", "pedidos", "pedidos/s", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)");
+        for (Map.Entry<String, Histogram> entry : this.latencies.entrySet()) {
+            Histogram h = entry.getValue();
+            if (h.getCount() == 0) continue;
+            System.out.printf("%-14s %10d %10.0f %10.1f %10.1f %10.1f %10.1f%n", entry.getKey(), h.getCount(),
+                    h.getCount() / elapsed, h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3,
+                    h.getValueAtPercentile(99.9) / 1e3, h.getMax() / 1e3);
+        }
+        System.out.printf("%nInfeções comunicadas: %d, notificações recebidas: %d, erros: %d%n",
+                this.infections.sum(), this.notified.sum(), this.errors.sum());
+    }
+}
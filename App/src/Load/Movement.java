@@ -0,0 +1,52 @@
+package Load;
+
+import User.Location;
+import java.util.SplittableRandom;
+
+/**
+ * Enum Movement
+ * Forma como os Users simulados escolhem a próxima localização numa grelha
+ * n x n:
+ * UNIFORM - qualquer localização, com igual probabilidade;
+ * WALK - uma das localizações vizinhas da atual (ou a própria, junto aos limites);
+ * HOTSPOT - com probabilidade "load.hotspotRatio" (por omissão 0.8), uma
+ * das "load.hotspots" localizações mais concorridas (por omissão 1), e
+ * qualquer outra caso contrário.
+ */
+public enum Movement {
+    UNIFORM {
+        @Override
+        public Location next(Location current, int n, SplittableRandom random) {
+            return new Location(random.nextInt(n), random.nextInt(n));
+        }
+    },
+    WALK {
+        @Override
+        public Location next(Location current, int n, SplittableRandom random) {
+            int x = Math.clamp(current.getCoordX() + random.nextInt(-1, 2), 0, n - 1);
+            int y = Math.clamp(current.getCoordY() + random.nextInt(-1, 2), 0, n - 1);
+            return new Location(x, y);
+        }
+    },
+    HOTSPOT {
+        private final int hotspots = Integer.getInteger("load.hotspots", 1);
+        private final double ratio = Double.parseDouble(System.getProperty("load.hotspotRatio", "0.8"));
+
+        @Override
+        public Location next(Location current, int n, SplittableRandom random) {
+            if (random.nextDouble() >= this.ratio) return UNIFORM.next(current, n, random);
+            // as localizações mais concorridas são as primeiras da diagonal
+            int k = random.nextInt(Math.min(this.hotspots, n));
+            return new Location(k, k);
+        }
+    };
+
+    /**
+     * Escolhe a próxima localização de um User
+     * @param current localização atual
+     * @param n número de linhas e colunas da grelha
+     * @param random gerador do User
+     * @return próxima localização, dentro da grelha
+     */
+    public abstract Location next(Location current, int n, SplittableRandom random);
+}
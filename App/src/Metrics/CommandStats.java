@@ -0,0 +1,39 @@
+package Metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe CommandStats
+ * Estatísticas de um comando do servidor: tempo de serviço de cada pedido,
+ * desde que o pedido é lido até a resposta ser escrita, e bytes recebidos e
+ * enviados.
+ */
+public class CommandStats {
+    private final Histogram service = new Histogram();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Regista um pedido atendido
+     * @param nanos tempo de serviço
+     * @param in bytes do pedido
+     * @param out bytes da resposta
+     */
+    public void record(long nanos, long in, long out) {
+        this.service.record(nanos);
+        this.bytesIn.add(in);
+        this.bytesOut.add(out);
+    }
+
+    public Histogram getService() {
+        return this.service;
+    }
+
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+}
@@ -0,0 +1,94 @@
+package Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe Histogram
+ * Histograma de valores não negativos (por exemplo, latências em
+ * nanosegundos) com intervalos de largura logarítmica, à semelhança do
+ * HdrHistogram: cada potência de 2 está dividida em 32 intervalos iguais,
+ * pelo que qualquer percentil é conhecido com um erro relativo inferior a
+ * 1/32 (cerca de 3%), com memória fixa, independente do número de valores.
+ * Não usa locks: registar um valor é apenas incrementar um contador de um
+ * array atómico, pelo que pode ser chamado por muitas threads ao mesmo
+ * tempo no caminho de cada pedido. As leituras não param os registos e, por
+ * isso, não correspondem a um único instante.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Regista um valor
+     * @param value valor; os negativos contam como 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        this.counts.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        long m;
+        while (value > (m = this.max.get()) && !this.max.compareAndSet(m, value));
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * Valor abaixo do qual (inclusive) se encontra uma dada percentagem dos
+     * valores registados
+     * @param percentile percentagem, entre 0 e 100
+     * @return o maior valor do intervalo onde está o percentil, ou 0 caso
+     * ainda não haja valores
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[this.counts.length()];
+        long n = 0;
+        for (int i = 0; i < snapshot.length; i++) n += snapshot[i] = this.counts.get(i);
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) return Math.min(highest(i), getMax());
+        }
+        return getMax();
+    }
+
+    private static int index(long value) {
+        if (value < SUB) return (int) value;
+        int bit = 63 - Long.numberOfLeadingZeros(value);
+        return ((bit - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (bit - SUB_BITS)) & (SUB - 1));
+    }
+
+    /**
+     * @return o maior valor que pertence ao intervalo com um dado índice
+     */
+    private static long highest(int index) {
+        if (index < SUB) return index;
+        int shift = (index >>> SUB_BITS) - 1;
+        long lowest = (long) (SUB + (index & (SUB - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,69 @@
+package Metrics;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe LockStats
+ * Mede o tempo de espera pelos locks de uma estrutura partilhada. Cada lock
+ * é primeiro tentado com tryLock; só quando está ocupado é que o tempo de
+ * espera é medido e registado, pelo que uma aquisição sem contenção custa
+ * apenas um incremento. O histograma contém, por isso, apenas as esperas
+ * das aquisições com contenção.
+ */
+public class LockStats {
+    private final String name;
+    private final LongAdder acquisitions = new LongAdder();
+    private final Histogram waits = new Histogram();
+
+    /**
+     * Construtor parametrizado da classe LockStats
+     * @param name nome dos locks medidos, usado nas estatísticas
+     */
+    public LockStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adquire um lock, medindo o tempo de espera caso esteja ocupado
+     * @param lock lock (exclusivo, ou o write lock de um ReentrantReadWriteLock)
+     */
+    public void lock(Lock lock) {
+        this.acquisitions.increment();
+        if (lock.tryLock()) return;
+        long start = System.nanoTime();
+        lock.lock();
+        this.waits.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Adquire o read lock de um ReentrantReadWriteLock, medindo o tempo de
+     * espera caso não esteja disponível. O tryLock do read lock passa à
+     * frente dos writers em espera, pelo que só é tentado quando não há
+     * nenhuma thread em espera, para não os deixar esperar indefinidamente.
+     * @param lock lock
+     */
+    public void lockRead(ReentrantReadWriteLock lock) {
+        this.acquisitions.increment();
+        if (!lock.hasQueuedThreads() && lock.readLock().tryLock()) return;
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        this.waits.record(System.nanoTime() - start);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getAcquisitions() {
+        return this.acquisitions.sum();
+    }
+
+    /**
+     * @return histograma dos tempos de espera (ns) das aquisições com contenção
+     */
+    public Histogram getWaits() {
+        return this.waits;
+    }
+}
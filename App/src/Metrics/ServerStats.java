@@ -0,0 +1,100 @@
+package Metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe ServerStats
+ * Reúne as estatísticas do servidor: as de cada comando (ver
+ * {@link CommandStats}), as esperas pelos locks das estruturas partilhadas
+ * (ver {@link LockStats}) e o número de sessões. São apresentadas como
+ * texto por {@link #report()}, em resposta ao comando "stats" e
+ * periodicamente no log do servidor. Todos os valores são acumulados desde
+ * o arranque.
+ */
+public class ServerStats {
+    private final Map<String, CommandStats> commands = new ConcurrentSkipListMap<>();
+    private final List<LockStats> locks = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAdder sessions = new LongAdder();
+    private final long start = System.nanoTime();
+
+    /**
+     * @param name nome do comando
+     * @return estatísticas do comando, criadas caso ainda não existam
+     */
+    public CommandStats command(String name) {
+        return this.commands.computeIfAbsent(name, k -> new CommandStats());
+    }
+
+    /**
+     * Acrescenta os locks de uma estrutura partilhada às estatísticas
+     * @param stats estatísticas dos locks
+     */
+    public void addLocks(List<LockStats> stats) {
+        this.locks.addAll(stats);
+    }
+
+    public void sessionOpened() {
+        this.activeSessions.incrementAndGet();
+        this.sessions.increment();
+    }
+
+    public void sessionClosed() {
+        this.activeSessions.decrementAndGet();
+    }
+
+    public int getActiveSessions() {
+        return this.activeSessions.get();
+    }
+
+    /**
+     * Escreve o log das estatísticas a cada período, numa thread própria
+     * @param seconds período, em segundos; 0 para não escrever
+     */
+    public void startLogging(long seconds) {
+        if (seconds <= 0) return;
+        Thread.ofPlatform().daemon().name("stats-log").start(() -> {
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(seconds);
+                    System.out.print(report());
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
+
+    /**
+     * @return estatísticas em texto, com os tempos em microsegundos
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        double uptime = (System.nanoTime() - this.start) / 1e9;
+        sb.append(String.format("Estatísticas após %.0f s: %d sessões ativas, %d no total%n",
+                uptime, getActiveSessions(), this.sessions.sum()));
+        sb.append(String.format("%-28s %10s %9s %9s %9s %9s %12s %12s%n",
+                "comando", "pedidos", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)", "bytes in", "bytes out"));
+        for (Map.Entry<String, CommandStats> entry : this.commands.entrySet()) {
+            Histogram h = entry.getValue().getService();
+            if (h.getCount() == 0) continue;
+            sb.append(String.format("%-28s %10d %9.1f %9.1f %9.1f %9.1f %12d %12d%n", entry.getKey(), h.getCount(),
+                    h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3,
+                    h.getValueAtPercentile(99.9) / 1e3, h.getMax() / 1e3,
+                    entry.getValue().getBytesIn(), entry.getValue().getBytesOut()));
+        }
+        sb.append(String.format("%-28s %10s %10s %9s %9s %9s%n",
+                "lock", "aquisições", "esperas", "p50 (us)", "p99 (us)", "max (us)"));
+        for (LockStats lock : this.locks) {
+            Histogram h = lock.getWaits();
+            sb.append(String.format("%-28s %10d %10d %9.1f %9.1f %9.1f%n", lock.getName(), lock.getAcquisitions(),
+                    h.getCount(), h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3, h.getMax() / 1e3));
+        }
+        return sb.toString();
+    }
+}
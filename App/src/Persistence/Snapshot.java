@@ -0,0 +1,177 @@
+package Persistence;
+
+import Controller.IntSet;
+import Controller.RegisterUsers;
+import Controller.UsersController;
+import User.Location;
+import User.User;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Classe Snapshot
+ * Fotografia de todo o estado do {@link UsersController} e do
+ * {@link RegisterUsers} num único ficheiro binário, escrito e lido através
+ * de um {@link MappedByteBuffer}. O ficheiro tem o seguinte formato, com
+ * todos os inteiros em big-endian:
+ * <pre>
+ *   cabeçalho:  magic | versão | número de Users (n) | número de ids de contactos (e) | número de épocas (k)
+ *   Users:      n x (x | y | exposições pendentes | flags), pela ordem dos ids,
+ *               com as flags infetado (1), privilegiado (2) e cópia de
+ *               um User de outro nó (4), cuja password fica vazia
+ *   épocas:     k x número da época (long)
+ *   contactos:  k x n + 1 posições de início (época a época, User a User),
+ *               seguidas dos e ids de contactos
+ *   strings:    n x (username | password), com comprimento (short) e UTF-8
+ * </pre>
+ * Os contactos de cada User numa época ocupam um intervalo contíguo de
+ * ids, pelo que são lidos de uma só vez para um array e copiados
+ * diretamente para o {@link IntSet} do User, sem criar um objeto por
+ * contacto. Só os usernames e passwords obrigam a criar objetos ao
+ * carregar.
+ * As fotografias da versão 1, anteriores às épocas, não têm o número de
+ * épocas nem a lista de épocas; os seus contactos são carregados na época
+ * atual.
+ * A fotografia é lida sem parar as escritas: cada User e cada conjunto de
+ * contactos é lido com o respetivo lock, mas o conjunto não corresponde a
+ * um único instante; as alterações feitas durante a escrita estão no
+ * {@link WriteAheadLog} que se lhe segue.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x53445331;
+    private static final int VERSION = 2;
+    private static final int HEADER = 20;
+    private static final int USER_INTS = 4;
+    private static final int INFECTED = 1;
+    private static final int PRIVILEGED = 2;
+    private static final int SHADOW = 4;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Escreve a fotografia do estado atual num ficheiro
+     * @param file ficheiro, criado ou substituído
+     * @param users UsersController
+     * @param contacts RegisterUsers
+     * @throws IOException caso não seja possível escrever, ou o estado não
+     * caiba num único mapeamento (2 GiB)
+     */
+    public static void write(Path file, UsersController users, RegisterUsers contacts) throws IOException {
+        List<User> all = users.getUsers();
+        long[] epochs = contacts.getEpochs();
+        int n = all.size(), k = epochs.length;
+        if ((long) k * n + 1 > Integer.MAX_VALUE / 4) throw new IOException("Snapshot demasiado grande: " + n + " Users");
+        int[][] edges = new int[k * n][];
+        byte[][] strings = new byte[2 * n][];
+        long total = 0, stringBytes = 0;
+        for (int i = 0; i < n; i++) {
+            User user = all.get(i);
+            if (user.getId() != i) throw new IOException("Ids não contíguos: " + user.getId() + " na posição " + i);
+            for (int j = 0; j < k; j++) {
+                // contactos registados depois da leitura dos Users ficam para o WriteAheadLog
+                int[] ids = contacts.getContactIds(user, epochs[j]);
+                int kept = 0;
+                for (int id : ids) if (id < n) ids[kept++] = id;
+                edges[j * n + i] = kept == ids.length ? ids : Arrays.copyOf(ids, kept);
+                total += kept;
+            }
+            strings[2 * i] = user.getUsername().getBytes(StandardCharsets.UTF_8);
+            strings[2 * i + 1] = (user.isShadow() ? "" : user.getPassword()).getBytes(StandardCharsets.UTF_8);
+            stringBytes += 4 + strings[2 * i].length + strings[2 * i + 1].length;
+        }
+        long size = HEADER + 4L * USER_INTS * n + 8L * k + 4L * (k * n + 1) + 4L * total + stringBytes;
+        if (size > Integer.MAX_VALUE) throw new IOException("Snapshot demasiado grande: " + size + " bytes");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt((int) total).putInt(k);
+            IntBuffer meta = buf.slice(HEADER, 4 * USER_INTS * n).asIntBuffer();
+            for (User user : all) {
+                Location loc = user.getLocation();
+                meta.put(loc.getCoordX()).put(loc.getCoordY()).put(user.getExposures())
+                    .put((user.isInfected() ? INFECTED : 0) | (user.isPrivileged() ? PRIVILEGED : 0)
+                            | (user.isShadow() ? SHADOW : 0));
+            }
+            int epochsAt = HEADER + 4 * USER_INTS * n;
+            buf.slice(epochsAt, 8 * k).asLongBuffer().put(epochs);
+            int offsetsAt = epochsAt + 8 * k;
+            IntBuffer offsets = buf.slice(offsetsAt, 4 * (k * n + 1)).asIntBuffer();
+            IntBuffer ids = buf.slice(offsetsAt + 4 * (k * n + 1), (int) (4 * total)).asIntBuffer();
+            for (int[] list : edges) {
+                offsets.put(ids.position());
+                ids.put(list);
+            }
+            offsets.put(ids.position());
+            ByteBuffer out = buf.slice(offsetsAt + 4 * (k * n + 1) + (int) (4 * total), (int) stringBytes);
+            for (byte[] s : strings) out.putShort((short) s.length).put(s);
+            buf.force();
+        }
+    }
+
+    /**
+     * Carrega uma fotografia para um UsersController e um RegisterUsers vazios
+     * @param file ficheiro
+     * @param users UsersController
+     * @param contacts RegisterUsers
+     * @return número de Users carregados
+     * @throws IOException caso o ficheiro não possa ser lido ou não seja uma fotografia válida
+     */
+    public static int load(Path file, UsersController users, RegisterUsers contacts) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE || channel.size() < HEADER - 4) throw new IOException("Snapshot inválido: " + file);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC) throw new IOException("Snapshot inválido: " + file);
+            int version = buf.getInt();
+            if (version != 1 && version != VERSION) throw new IOException("Versão de snapshot desconhecida: " + version);
+            int n = buf.getInt(), total = buf.getInt();
+            int k = version == 1 ? 1 : buf.getInt();
+            int metaAt = buf.position();
+            IntBuffer meta = buf.slice(metaAt, 4 * USER_INTS * n).asIntBuffer();
+            int epochsAt = metaAt + 4 * USER_INTS * n;
+            long[] epochs = new long[k];
+            if (version == 1) epochs[0] = contacts.currentEpoch();
+            else buf.slice(epochsAt, 8 * k).asLongBuffer().get(epochs);
+            int offsetsAt = version == 1 ? epochsAt : epochsAt + 8 * k;
+            IntBuffer offsets = buf.slice(offsetsAt, 4 * (k * n + 1)).asIntBuffer();
+            int idsAt = offsetsAt + 4 * (k * n + 1);
+            IntBuffer ids = buf.slice(idsAt, 4 * total).asIntBuffer();
+            ByteBuffer in = buf.slice(idsAt + 4 * total, buf.capacity() - idsAt - 4 * total);
+            int[] scratch = new int[16];
+            for (int id = 0; id < n; id++) {
+                String name = readString(in), pw = readString(in);
+                int x = meta.get(), y = meta.get(), exposures = meta.get(), flags = meta.get();
+                User user = new User(id, name, (flags & SHADOW) != 0 ? null : pw, (flags & PRIVILEGED) != 0);
+                if ((flags & INFECTED) != 0) user.setInfected(true);
+                if (x != Location.NONE.getCoordX() || y != Location.NONE.getCoordY()) user.setLocation(new Location(x, y));
+                for (int e = 0; e < exposures; e++) user.addExposure();
+                users.restore(user);
+                contacts.createEntry(user);
+                for (int j = 0; j < k; j++) {
+                    int from = offsets.get(j * n + id), len = offsets.get(j * n + id + 1) - from;
+                    if (len == 0) continue;
+                    if (len > scratch.length) scratch = new int[Math.max(len, scratch.length * 2)];
+                    ids.get(from, scratch, 0, len);
+                    contacts.restore(epochs[j], user, new IntSet(scratch, 0, len));
+                }
+            }
+            return n;
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
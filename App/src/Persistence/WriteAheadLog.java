@@ -0,0 +1,547 @@
+package Persistence;
+
+import Controller.Journal;
+import Controller.RegisterUsers;
+import Controller.UsersController;
+import User.Location;
+import User.User;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Classe WriteAheadLog
+ * Journal que guarda as alterações ao estado do servidor em ficheiros
+ * append-only ("wal.N"), para que o {@link UsersController} e o
+ * {@link RegisterUsers} possam ser reconstruídos quando o servidor reinicia.
+ * Cada alteração é um registo com o formato:
+ * <pre>
+ *   comprimento (int) | crc32 (int) | tipo (1 byte) | campos
+ * </pre>
+ * Os registos são acumulados em memória e escritos por uma única thread,
+ * que escreve e sincroniza com o disco (fsync) de uma só vez todos os
+ * registos acumulados enquanto a escrita anterior decorria (group commit).
+ * Uma thread que chame {@link #awaitDurable()} espera apenas pelo fsync que
+ * inclui os seus registos, pelo que vários pedidos partilham o mesmo fsync.
+ * Periodicamente, ou quando o ficheiro atual ultrapassa um dado tamanho, a
+ * escrita passa para um novo ficheiro e é escrita, noutra thread, uma
+ * fotografia ({@link Snapshot}, "snapshot.N") com todo o estado, após a
+ * qual os ficheiros anteriores são apagados. A fotografia é lida sem parar
+ * as escritas, pelo que pode já incluir alterações que também estão no
+ * novo ficheiro; todos os registos podem ser aplicados mais do que uma vez
+ * sem alterar o resultado (exceto as exposições, que só interessam
+ * enquanto pendentes).
+ * Caso a escrita ou o fsync falhem, o WriteAheadLog deixa de aceitar
+ * registos: as alterações seguintes e as threads que esperam por registos
+ * ainda não sincronizados recebem uma {@link UncheckedIOException}, pelo
+ * que o pedido falha e a sessão termina sem resposta, em vez de confirmar
+ * uma alteração que não voltaria a ser aplicada.
+ * Os contactos são guardados com a época em que foram registados, para
+ * que, ao recuperar o estado, voltem à mesma época e saiam da janela de
+ * exposição na altura certa. Os registos de contactos sem época, de
+ * versões anteriores, são repostos na época atual.
+ */
+public class WriteAheadLog implements Journal {
+    private static final byte REGISTER = 1;
+    private static final byte MOVE = 2;
+    private static final byte INFECT = 3;
+    private static final byte CONTACTS = 4;
+    private static final byte EXPOSED = 5;
+    private static final byte NOTIFIED = 6;
+    private static final byte EPOCH_CONTACTS = 7;
+    /** Bits do campo de flags dos registos REGISTER (antes um boolean "privilegiado") */
+    private static final int PRIVILEGED = 1;
+    private static final int SHADOW = 2;
+    private static final String WAL = "wal.";
+    private static final String SNAPSHOT = "snapshot.";
+
+    /**
+     * Escrita dos campos de um registo
+     */
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Path dir;
+    private final UsersController users;
+    private final RegisterUsers contacts;
+    private final long batchMillis;
+    private final long compactBytes;
+    private final long snapshotNanos;
+    private final boolean durable;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long synced = 0;
+    private boolean closed = false;
+    private boolean stopped = false;
+    private IOException failure = null;
+    private final ThreadLocal<long[]> last = ThreadLocal.withInitial(() -> new long[1]);
+
+    // usados apenas pela thread que escreve os registos
+    private FileChannel channel;
+    private long generation;
+    private long written = 0;
+    private long lastSnapshot = System.nanoTime();
+    private volatile boolean compacting = false;
+    private final Thread writer;
+
+    private WriteAheadLog(Path dir, UsersController users, RegisterUsers contacts, long generation,
+                          long batchMillis, long compactBytes, long snapshotMillis, boolean durable) throws IOException {
+        this.dir = dir;
+        this.users = users;
+        this.contacts = contacts;
+        this.generation = generation;
+        this.batchMillis = batchMillis;
+        this.compactBytes = compactBytes;
+        this.snapshotNanos = TimeUnit.MILLISECONDS.toNanos(snapshotMillis);
+        this.durable = durable;
+        this.channel = openLog(generation);
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Reconstrói o estado a partir dos ficheiros de uma diretoria e passa a
+     * guardar nela todas as alterações seguintes
+     * @param dir diretoria dos ficheiros
+     * @param users UsersController vazio, a reconstruir
+     * @param contacts RegisterUsers vazio, a reconstruir
+     * @param batchMillis tempo que a thread de escrita espera, antes de cada
+     *                    escrita, para juntar mais registos (0 para não esperar)
+     * @param compactBytes tamanho a partir do qual o ficheiro atual é compactado
+     * @param snapshotMillis intervalo máximo entre fotografias, caso haja alterações
+     * @param durable true caso {@link #awaitDurable()} deva esperar pelo fsync
+     * @return o WriteAheadLog, já associado ao UsersController e ao RegisterUsers
+     * @throws IOException caso os ficheiros não possam ser lidos ou criados,
+     * ou contenham um registo inválido que não seja o último do ficheiro mais recente
+     */
+    public static WriteAheadLog open(Path dir, UsersController users, RegisterUsers contacts,
+                                     long batchMillis, long compactBytes, long snapshotMillis,
+                                     boolean durable) throws IOException {
+        Files.createDirectories(dir);
+        // fotografias que não chegaram a ser concluídas
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                if (file.getFileName().toString().endsWith(".tmp")) Files.delete(file);
+        }
+        long start = System.nanoTime();
+        long snapshot = -1;
+        int loaded = 0;
+        for (long gen : generations(dir, SNAPSHOT)) snapshot = gen;
+        if (snapshot >= 0) loaded = Snapshot.load(dir.resolve(SNAPSHOT + snapshot), users, contacts);
+        Replay replay = new Replay(users, contacts);
+        long lastGen = snapshot;
+        List<Long> logs = new ArrayList<>();
+        for (long gen : generations(dir, WAL)) {
+            if (gen >= snapshot) logs.add(gen);
+            lastGen = Math.max(lastGen, gen);
+        }
+        for (int i = 0; i < logs.size(); i++)
+            replay.read(dir.resolve(WAL + logs.get(i)), i == logs.size() - 1);
+        // os registos seguintes vão para um ficheiro novo, nunca depois de um registo incompleto;
+        // os ficheiros lidos só são apagados depois da próxima fotografia
+        WriteAheadLog wal = new WriteAheadLog(dir, users, contacts, lastGen + 1,
+                batchMillis, compactBytes, snapshotMillis, durable);
+        users.setJournal(wal);
+        contacts.setJournal(wal);
+        wal.writer.start();
+        System.out.println("Estado recuperado de " + dir + ": " + loaded + " Users da fotografia e "
+                + replay.records + " registos em " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return wal;
+    }
+
+    @Override
+    public void register(User user) {
+        append(encode(REGISTER, out -> writeRegister(out, user)));
+    }
+
+    @Override
+    public void move(User user, Location loc) {
+        append(encode(MOVE, out -> writeMove(out, user, loc)));
+    }
+
+    @Override
+    public void infect(User user) {
+        append(encode(INFECT, out -> out.writeInt(user.getId())));
+    }
+
+    @Override
+    public void contacts(long epoch, User user, Collection<User> contacts) {
+        append(encode(EPOCH_CONTACTS, out -> {
+            out.writeLong(epoch);
+            writeContacts(out, user, contacts);
+        }));
+    }
+
+    @Override
+    public void exposed(Collection<User> users) {
+        append(encode(EXPOSED, out -> writeIds(out, users)));
+    }
+
+    @Override
+    public void notified(User user) {
+        append(encode(NOTIFIED, out -> out.writeInt(user.getId())));
+    }
+
+    /**
+     * @throws UncheckedIOException caso a escrita tenha falhado antes de
+     * incluir as alterações da thread atual
+     */
+    @Override
+    public void awaitDurable() {
+        long mine = this.last.get()[0];
+        if (mine == 0) return;
+        try {
+            lock.lock();
+            if (this.durable)
+                while (this.synced < mine && !this.stopped) this.flushed.awaitUninterruptibly();
+            if (this.failure != null || (this.durable && this.synced < mine)) throw failed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Escreve os registos pendentes e termina a thread de escrita
+     */
+    public void close() throws InterruptedException {
+        try {
+            lock.lock();
+            this.closed = true;
+            this.pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        this.writer.join();
+    }
+
+    /**
+     * @return exceção a lançar quando o WriteAheadLog já não aceita registos
+     */
+    private UncheckedIOException failed() {
+        return new UncheckedIOException(this.failure != null ? this.failure : new IOException("WAL terminado"));
+    }
+
+    /**
+     * @throws UncheckedIOException caso a escrita tenha falhado ou o
+     * WriteAheadLog tenha sido terminado
+     */
+    private void append(byte[] record) {
+        try {
+            lock.lock();
+            if (this.closed) throw failed();
+            this.buffer.write(record, 0, record.length);
+            this.last.get()[0] = ++this.appended;
+            this.pending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ciclo da thread que escreve os registos acumulados
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                try {
+                    lock.lock();
+                    while (this.buffer.size() == 0 && !this.closed) this.pending.await();
+                    if (this.buffer.size() == 0) break;
+                } finally {
+                    lock.unlock();
+                }
+                if (this.batchMillis > 0) Thread.sleep(this.batchMillis);
+                ByteArrayOutputStream batch;
+                long seq;
+                try {
+                    lock.lock();
+                    batch = this.buffer;
+                    seq = this.appended;
+                    this.buffer = new ByteArrayOutputStream(batch.size());
+                } finally {
+                    lock.unlock();
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(batch.toByteArray());
+                while (bytes.hasRemaining()) this.channel.write(bytes);
+                this.channel.force(false);
+                this.written += batch.size();
+                try {
+                    lock.lock();
+                    this.synced = seq;
+                    this.flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (!this.compacting && (this.written >= this.compactBytes
+                        || System.nanoTime() - this.lastSnapshot >= this.snapshotNanos)) rotate();
+            }
+            this.channel.close();
+        } catch (IOException e) {
+            System.out.println("Falha na escrita do WAL em " + this.dir + "; as alterações seguintes são recusadas");
+            e.printStackTrace();
+            try {
+                lock.lock();
+                this.failure = e;
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                lock.lock();
+                this.closed = true;
+                this.stopped = true;
+                this.flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Passa a escrever num novo ficheiro e escreve, noutra thread, uma
+     * fotografia a partir da qual os ficheiros anteriores deixam de ser
+     * necessários
+     */
+    private void rotate() throws IOException {
+        this.channel.close();
+        long gen = ++this.generation;
+        this.channel = openLog(gen);
+        this.written = 0;
+        this.lastSnapshot = System.nanoTime();
+        this.compacting = true;
+        Thread.ofVirtual().start(() -> {
+            try {
+                snapshot(gen);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                this.compacting = false;
+            }
+        });
+    }
+
+    /**
+     * Escreve todo o estado atual numa fotografia e apaga os ficheiros que
+     * deixaram de ser necessários. As alterações feitas durante a escrita
+     * estão no ficheiro "wal." da mesma geração, que é aplicado a seguir à
+     * fotografia.
+     * @param gen geração da fotografia
+     */
+    private void snapshot(long gen) throws IOException {
+        Path tmp = this.dir.resolve(SNAPSHOT + gen + ".tmp");
+        Snapshot.write(tmp, this.users, this.contacts);
+        Files.move(tmp, this.dir.resolve(SNAPSHOT + gen), StandardCopyOption.ATOMIC_MOVE);
+        for (long old : generations(this.dir, WAL)) if (old < gen) Files.deleteIfExists(this.dir.resolve(WAL + old));
+        for (long old : generations(this.dir, SNAPSHOT)) if (old < gen) Files.deleteIfExists(this.dir.resolve(SNAPSHOT + old));
+    }
+
+    private FileChannel openLog(long gen) throws IOException {
+        return FileChannel.open(this.dir.resolve(WAL + gen),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return gerações dos ficheiros com um dado prefixo, por ordem crescente
+     */
+    private static List<Long> generations(Path dir, String prefix) throws IOException {
+        List<Long> r = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"))
+                    r.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        r.sort(null);
+        return r;
+    }
+
+    /**
+     * Codifica um registo, incluindo o cabeçalho com o comprimento e o crc32
+     */
+    private static byte[] encode(byte type, Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        ByteBuffer.wrap(record).putInt(record.length - 8).putInt((int) crc.getValue());
+        return record;
+    }
+
+    private static void writeRegister(DataOutputStream out, User user) throws IOException {
+        out.writeInt(user.getId());
+        out.writeUTF(user.getUsername());
+        out.writeUTF(user.isShadow() ? "" : user.getPassword());
+        out.writeByte((user.isPrivileged() ? PRIVILEGED : 0) | (user.isShadow() ? SHADOW : 0));
+    }
+
+    private static void writeMove(DataOutputStream out, User user, Location loc) throws IOException {
+        out.writeInt(user.getId());
+        out.writeInt(loc.getCoordX());
+        out.writeInt(loc.getCoordY());
+    }
+
+    private static void writeContacts(DataOutputStream out, User user, Collection<User> contacts) throws IOException {
+        out.writeInt(user.getId());
+        writeIds(out, contacts);
+    }
+
+    private static void writeIds(DataOutputStream out, Collection<User> users) throws IOException {
+        out.writeInt(users.size());
+        for (User user : users) out.writeInt(user.getId());
+    }
+
+    /**
+     * Aplicação dos registos lidos dos ficheiros ao UsersController e ao
+     * RegisterUsers, ainda sem Journal associado
+     */
+    private static class Replay {
+        private final UsersController users;
+        private final RegisterUsers contacts;
+        private final List<User> byId = new ArrayList<>();
+        private long records = 0;
+
+        Replay(UsersController users, RegisterUsers contacts) {
+            this.users = users;
+            this.contacts = contacts;
+            // Users já carregados da fotografia
+            this.byId.addAll(users.getUsers());
+        }
+
+        /**
+         * Aplica todos os registos de um ficheiro. Só o último registo do
+         * ficheiro mais recente pode estar incompleto (ou, caso termine no
+         * fim do ficheiro, com o crc32 errado): é o que estava a ser escrito
+         * quando o servidor terminou. Esse registo é ignorado e retirado do
+         * ficheiro, para que deixe de ser o último quando houver ficheiros
+         * mais recentes. Qualquer outro registo inválido impede a
+         * recuperação, já que os registos seguintes seriam aplicados a um
+         * estado incompleto.
+         * @param file ficheiro
+         * @param newest true caso seja o ficheiro mais recente
+         * @throws IOException caso o ficheiro não possa ser lido ou tenha um registo inválido
+         */
+        void read(Path file, boolean newest) throws IOException {
+            long size = Files.size(file), valid = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                while (valid < size) {
+                    if (size - valid < 8) break;
+                    int len = in.readInt(), crc = in.readInt();
+                    if (len < 1 || len > 1 << 28)
+                        throw new IOException("Comprimento inválido (" + len + ") em " + file + " na posição " + valid);
+                    if (size - valid - 8 < len) break;
+                    byte[] record = new byte[len];
+                    in.readFully(record);
+                    CRC32 check = new CRC32();
+                    check.update(record);
+                    if ((int) check.getValue() != crc) {
+                        if (valid + 8 + len == size) break;
+                        throw new IOException("crc32 inválido em " + file + " na posição " + valid);
+                    }
+                    try {
+                        apply(new DataInputStream(new ByteArrayInputStream(record)));
+                    } catch (IOException e) {
+                        throw new IOException("Registo inválido em " + file + " na posição " + valid + ": " + e.getMessage(), e);
+                    }
+                    this.records++;
+                    valid += 8 + len;
+                }
+            }
+            if (valid == size) return;
+            if (!newest) throw new IOException("Registo incompleto em " + file + " na posição " + valid);
+            System.out.println("Registo incompleto ignorado no fim de " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+
+        private void apply(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+                case REGISTER -> {
+                    int id = in.readInt();
+                    String name = in.readUTF(), pw = in.readUTF();
+                    int flags = in.readByte();
+                    if ((flags & SHADOW) != 0) pw = null;
+                    User user = this.users.register(name, pw, (flags & PRIVILEGED) != 0, this.contacts::createEntry);
+                    if (user == null) user = this.users.getUser(name);
+                    if (user.getId() != id) throw new IOException("Id inconsistente para " + name);
+                    while (this.byId.size() <= id) this.byId.add(null);
+                    this.byId.set(id, user);
+                }
+                case MOVE -> {
+                    User user = user(in.readInt());
+                    Location loc = new Location(in.readInt(), in.readInt());
+                    // num cluster, um User que passou para outro nó sai da grelha deste
+                    if (user != null && loc.equals(Location.NONE)) this.users.leave(user);
+                    else if (user != null) this.users.setLocalizacao(user, loc, Integer.MAX_VALUE);
+                }
+                case INFECT -> {
+                    User user = user(in.readInt());
+                    if (user != null) this.users.commInfection(user);
+                }
+                case CONTACTS -> {
+                    User user = user(in.readInt());
+                    List<User> list = ids(in);
+                    if (user != null) this.contacts.createNewRegisters(user, list);
+                }
+                case EPOCH_CONTACTS -> {
+                    long epoch = in.readLong();
+                    User user = user(in.readInt());
+                    List<User> list = ids(in);
+                    if (user != null) this.contacts.createNewRegisters(epoch, List.of(user), list);
+                }
+                case EXPOSED -> {
+                    for (User user : ids(in)) user.addExposure();
+                }
+                case NOTIFIED -> {
+                    User user = user(in.readInt());
+                    if (user != null) this.users.takeExposures(user);
+                }
+                default -> throw new IOException("Tipo de registo desconhecido: " + type);
+            }
+        }
+
+        private User user(int id) {
+            return id >= 0 && id < this.byId.size() ? this.byId.get(id) : null;
+        }
+
+        /**
+         * Lê uma lista de ids, ignorando os de Users que não foram registados
+         */
+        private List<User> ids(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            List<User> r = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                User user = user(in.readInt());
+                if (user != null) r.add(user);
+            }
+            return r;
+        }
+    }
+}
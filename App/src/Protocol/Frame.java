@@ -0,0 +1,245 @@
+package Protocol;
+
+import User.Location;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Classe Frame
+ * Unidade do protocolo binário. No socket, uma frame ocupa:
+ * <pre>
+ *   comprimento (varint) | opcode (1 byte) | id (varint) | payload
+ * </pre>
+ * em que o comprimento conta o opcode, o id e o payload. O id identifica o
+ * pedido: a resposta leva o mesmo id do pedido a que responde, pelo que um
+ * cliente pode ter vários pedidos em curso na mesma conexão. As Frames de
+ * notificação levam o id 0. Os inteiros do payload
+ * são codificados como varints zigzag, pelo que coordenadas pequenas ocupam
+ * um único byte, e as Strings como um varint com o número de bytes seguido
+ * do seu conteúdo em UTF-8.
+ * A mesma classe serve para construir uma frame (métodos put) e para a ler
+ * depois de recebida (métodos get).
+ */
+public class Frame {
+    private final Opcode opcode;
+    private int id;
+    private byte[] buf;
+    private int size;
+    private int pos;
+
+    /**
+     * Construtor de uma frame vazia, pronta a ser preenchida
+     * @param opcode pedido que a frame transporta
+     */
+    public Frame(Opcode opcode) {
+        this(opcode, new byte[32], 0);
+    }
+
+    private Frame(Opcode opcode, byte[] buf, int size) {
+        this.opcode = opcode;
+        this.buf = buf;
+        this.size = size;
+        this.pos = 0;
+    }
+
+    /**
+     * @return opcode da frame, ou null caso tenha sido recebido um código desconhecido
+     */
+    public Opcode getOpcode() {
+        return this.opcode;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Define o id do pedido a que a frame diz respeito
+     * @param id id, não negativo
+     * @return a própria frame
+     */
+    public Frame setId(int id) {
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * @return número de bytes do payload
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return número de bytes que a frame ocupa no socket, com o cabeçalho
+     */
+    public int wireSize() {
+        int len = this.size + 1 + varIntSize(this.id);
+        return varIntSize(len) + len;
+    }
+
+    private void ensure(int n) {
+        if (this.size + n > this.buf.length)
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.size + n));
+    }
+
+    public Frame putByte(int b) {
+        ensure(1);
+        this.buf[this.size++] = (byte) b;
+        return this;
+    }
+
+    public Frame putBoolean(boolean b) {
+        return putByte(b ? 1 : 0);
+    }
+
+    /**
+     * Escreve um long sem sinal, 7 bits por byte
+     */
+    public Frame putVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            this.buf[this.size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        this.buf[this.size++] = (byte) v;
+        return this;
+    }
+
+    public Frame putLong(long v) {
+        return putVarLong((v << 1) ^ (v >> 63));
+    }
+
+    public Frame putInt(int v) {
+        return putLong(v);
+    }
+
+    public Frame putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarLong(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buf, this.size, bytes.length);
+        this.size += bytes.length;
+        return this;
+    }
+
+    public Frame putLocation(Location loc) {
+        return putInt(loc.getCoordX()).putInt(loc.getCoordY());
+    }
+
+    public int getByte() throws EOFException {
+        if (this.pos >= this.size) throw new EOFException("Frame " + this.opcode + " truncada");
+        return this.buf[this.pos++] & 0xFF;
+    }
+
+    public boolean getBoolean() throws EOFException {
+        return getByte() != 0;
+    }
+
+    public long getVarLong() throws EOFException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = getByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new EOFException("Varint inválido na frame " + this.opcode);
+    }
+
+    /**
+     * Lê o número de elementos de uma lista que se segue na frame. Como o
+     * número vem do cliente, só é aceite caso os elementos caibam no resto
+     * da frame, para que não seja reservada memória para elementos que não
+     * foram enviados.
+     * @param minSize número mínimo de bytes de cada elemento
+     * @return número de elementos, ou -1 caso seja negativo ou maior do que
+     * o resto da frame permite
+     * @throws EOFException caso a frame termine antes do número
+     */
+    public int getCount(int minSize) throws EOFException {
+        long count = getVarLong();
+        return count >= 0 && count <= (this.size - this.pos) / minSize ? (int) count : -1;
+    }
+
+    public long getLong() throws EOFException {
+        long v = getVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public int getInt() throws EOFException {
+        return (int) getLong();
+    }
+
+    public String getString() throws EOFException {
+        int len = (int) getVarLong();
+        if (len < 0 || this.pos + len > this.size) throw new EOFException("Frame " + this.opcode + " truncada");
+        String s = new String(this.buf, this.pos, len, StandardCharsets.UTF_8);
+        this.pos += len;
+        return s;
+    }
+
+    public Location getLocation() throws EOFException {
+        int x = getInt();
+        return new Location(x, getInt());
+    }
+
+    /**
+     * Escreve a frame, com o respetivo cabeçalho, num output
+     * @param out output
+     * @throws IOException caso não seja possível escrever
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeVarInt(out, this.size + 1 + varIntSize(this.id));
+        out.writeByte(this.opcode.getCode());
+        writeVarInt(out, this.id);
+        out.write(this.buf, 0, this.size);
+    }
+
+    /**
+     * Lê uma frame completa de um input
+     * @param in input
+     * @return frame lida
+     * @throws IOException caso a ligação termine ou a frame seja inválida
+     */
+    public static Frame readFrom(DataInput in) throws IOException {
+        int len = readVarInt(in);
+        if (len < 1 || len > Protocol.MAX_FRAME) throw new IOException("Comprimento de frame inválido: " + len);
+        Opcode opcode = Opcode.of(in.readUnsignedByte());
+        int id = readVarInt(in);
+        if (id < 0 || len < 1 + varIntSize(id)) throw new IOException("Id de frame inválido: " + id);
+        byte[] payload = new byte[len - 1 - varIntSize(id)];
+        in.readFully(payload);
+        return new Frame(opcode, payload, payload.length).setId(id);
+    }
+
+    private static int varIntSize(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Varint inválido no cabeçalho da frame");
+    }
+}
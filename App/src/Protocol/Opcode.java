@@ -0,0 +1,73 @@
+package Protocol;
+
+/**
+ * Enum Opcode
+ * Identifica, com um único byte, o pedido transportado por uma {@link Frame}.
+ * A resposta a um pedido usa o mesmo opcode do pedido. Os opcodes de
+ * notificação identificam Frames que o servidor envia por iniciativa
+ * própria, sem corresponderem a nenhum pedido. Os opcodes NODE_* são as
+ * mensagens trocadas entre os nós de um cluster, só aceites em sessões
+ * que se identificaram com {@link #PEER}.
+ */
+public enum Opcode {
+    REGISTER(1),
+    LOGIN(2),
+    CHANGE_LOCATION(3),
+    HOW_MANY_IN_LOCATION(4),
+    COMMUNICATE_INFECTION(5),
+    LOAD_MAP(6),
+    IS_PRIVILEGED(7),
+    VERIFY_LOCATION(8),
+    CHECK_NOTIFICATION(9),
+    EXIT(10),
+    SUBSCRIBE(11),
+    UNSUBSCRIBE(12),
+    EXPOSURE(13, true),
+    WATCH_LOCATION(14),
+    LOCATION_FREE(15, true),
+    LOAD_MAP_DELTA(16),
+    BATCH_CHANGE_LOCATION(17),
+    STATS(18),
+    CLUSTER(19),
+    PEER(20),
+    NODE_ENTER(21),
+    NODE_LEAVE(22),
+    NODE_INFECTED(23),
+    NODE_EXPOSE(24);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    static {
+        for (Opcode op : values()) BY_CODE[op.code] = op;
+    }
+
+    private final int code;
+    private final boolean push;
+
+    Opcode(int code) {
+        this(code, false);
+    }
+
+    Opcode(int code, boolean push) {
+        this.code = code;
+        this.push = push;
+    }
+
+    public int getCode() {
+        return this.code;
+    }
+
+    /**
+     * @return true caso seja uma notificação enviada pelo servidor
+     */
+    public boolean isPush() {
+        return this.push;
+    }
+
+    /**
+     * @param code byte lido do socket
+     * @return opcode correspondente, ou null caso o código seja desconhecido
+     */
+    public static Opcode of(int code) {
+        return BY_CODE[code & 0xFF];
+    }
+}
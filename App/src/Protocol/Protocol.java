@@ -0,0 +1,50 @@
+package Protocol;
+
+/**
+ * Classe Protocol
+ * Reúne as constantes do protocolo binário partilhado entre o Server.Stub e
+ * o Controller.ControllerSkeleton. Um cliente que pretenda usar este
+ * protocolo começa a sessão com o comando textual {@link #HELLO}, seguido
+ * de um byte com a versão mais recente que conhece; o servidor responde com
+ * um byte com a versão acordada (0 caso não haja nenhuma em comum, ficando
+ * a sessão no protocolo textual). A partir daí, todos os pedidos e
+ * respostas passam a ser {@link Frame}s. Clientes antigos, que nunca enviam
+ * o HELLO, continuam a ser servidos pelo protocolo textual.
+ * A versão 2 acrescentou ao cabeçalho das Frames o id do pedido, que
+ * permite ter vários pedidos em curso na mesma conexão; a versão 1 deixou
+ * de ser aceite.
+ * A partir da versão 3, o byte com a versão acordada é seguido de um int
+ * com o número de linhas e colunas da grelha do servidor, para que o
+ * cliente não tenha de o conhecer de antemão.
+ * Na versão 4, a resposta a um login bem sucedido traz o identificador do
+ * User na sessão (varint), que os pedidos feitos em nome de um User passam
+ * a enviar em vez do username.
+ * A versão 5 acrescentou o pedido {@link Opcode#CLUSTER}, que devolve os
+ * nós do cluster a que o servidor pertence, e as mensagens entre nós.
+ * Na versão 6, a notificação {@link Opcode#EXPOSURE} traz o identificador
+ * na sessão do User a que se refere (varint), para que um cliente com
+ * vários Users subscritos na mesma conexão saiba a qual entregá-la.
+ */
+public final class Protocol {
+    /** Comando textual que inicia a negociação do protocolo binário */
+    public static final String HELLO = "hello";
+    /** Versão mais recente do protocolo binário */
+    public static final int VERSION = 6;
+    /** Versão mais antiga do protocolo binário que ainda é aceite */
+    public static final int MIN_VERSION = 2;
+    /** Tamanho máximo, em bytes, de uma frame */
+    public static final int MAX_FRAME = 1 << 24;
+
+    private Protocol() {
+    }
+
+    /**
+     * Escolhe a versão a usar numa sessão
+     * @param offered versão mais recente conhecida pelo cliente
+     * @return versão acordada, ou 0 caso não haja nenhuma em comum
+     */
+    public static int negotiate(int offered) {
+        int version = Math.min(offered, VERSION);
+        return version >= MIN_VERSION ? version : 0;
+    }
+}
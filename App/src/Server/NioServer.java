@@ -0,0 +1,247 @@
+package Server;
+
+import Controller.Session;
+import Controller.Skeleton;
+import Protocol.Frame;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Classe NioServer
+ * Alternativa ao servidor com uma thread por conexão. As conexões são
+ * repartidas por um pequeno número de event loops, cada um com o seu
+ * Selector, que só leem e escrevem no socket sem nunca bloquear. Quando um
+ * pedido chega por completo (ver {@link Skeleton#requestLength}), é entregue
+ * a um conjunto limitado de workers que o atendem através do mesmo
+ * {@link Skeleton} usado pelo servidor bloqueante, pelo que o formato das
+ * mensagens é exatamente o mesmo.
+ * Cada conexão tem no máximo um pedido a ser atendido de cada vez, o que
+ * garante que as respostas saem pela ordem dos pedidos; enquanto isso, a
+ * conexão deixa de ser lida.
+ */
+public class NioServer {
+    private final Skeleton skeleton;
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+
+    /**
+     * Construtor parametrizado da classe NioServer
+     * @param skeleton skeleton que atende os pedidos
+     * @param port porta onde o servidor escuta
+     * @param loops número de event loops
+     * @param workers número de threads que atendem pedidos
+     * @param queue número máximo de pedidos à espera de um worker
+     */
+    public NioServer(Skeleton skeleton, int port, int loops, int workers, int queue) throws IOException {
+        this.skeleton = skeleton;
+        this.port = port;
+        this.loops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++) this.loops[i] = new EventLoop();
+        // quando a fila enche, o próprio event loop atende o pedido, deixando
+        // de ler novos pedidos até recuperar
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Aceita conexões indefinidamente, distribuindo-as pelos event loops
+     */
+    public void run() throws IOException {
+        for (int i = 0; i < this.loops.length; i++) {
+            Thread t = new Thread(this.loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(this.port));
+            int next = 0;
+            while (true) {
+                System.out.println("À espera de conexão");
+                SocketChannel ch = ssc.accept();
+                ch.configureBlocking(false);
+                EventLoop loop = this.loops[next++ % this.loops.length];
+                loop.execute(() -> loop.register(ch));
+            }
+        }
+    }
+
+    /**
+     * Thread que serve um conjunto de conexões através de um Selector.
+     * Todas as alterações às conexões que lhe pertencem são feitas nesta
+     * thread; as restantes threads submetem-lhe tarefas com {@link #execute}.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                Connection conn = new Connection(this, ch);
+                conn.key = ch.register(this.selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) task.run();
+                    for (SelectionKey key : this.selector.selectedKeys()) {
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close();
+                        }
+                    }
+                    this.selector.selectedKeys().clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Estado de uma conexão servida por um event loop
+     */
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel ch;
+        private final Session session;
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        private ByteBuffer in = ByteBuffer.allocate(512);
+        private SelectionKey key;
+        private boolean busy = false;
+
+        Connection(EventLoop loop, SocketChannel ch) {
+            this.loop = loop;
+            this.ch = ch;
+            this.session = new Session(this::send);
+        }
+
+        /**
+         * Codifica uma Frame e entrega-a ao event loop para ser escrita;
+         * pode ser chamado por qualquer thread
+         */
+        void send(Frame frame) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.size() + 8);
+            frame.writeTo(new DataOutputStream(bytes));
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            this.loop.execute(() -> {
+                if (!this.key.isValid()) return;
+                this.out.add(buf);
+                try {
+                    onWritable();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        void onReadable() throws IOException {
+            if (!this.in.hasRemaining())
+                this.in = ByteBuffer.allocate(this.in.capacity() * 2).put(this.in.flip());
+            if (this.ch.read(this.in) < 0) {
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * Caso haja um pedido completo no buffer e nenhum em curso, entrega-o a um worker
+         */
+        void dispatch() throws IOException {
+            if (this.busy || !this.session.isOpen()) return;
+            this.in.flip();
+            int n = skeleton.requestLength(this.session, this.in);
+            if (n < 0) {
+                this.in.compact();
+                return;
+            }
+            byte[] req = new byte[n];
+            this.in.get(req).compact();
+            this.busy = true;
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            workers.execute(() -> process(req));
+        }
+
+        /**
+         * Atende um pedido num worker e devolve a resposta ao event loop
+         */
+        void process(byte[] req) {
+            ByteArrayOutputStream res = new ByteArrayOutputStream();
+            try {
+                var dis = new DataInputStream(new ByteArrayInputStream(req));
+                var dos = new DataOutputStream(res);
+                skeleton.handleRequest(this.session, dis, dos);
+                dos.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                this.session.close();
+            }
+            this.loop.execute(() -> completed(res.toByteArray()));
+        }
+
+        void completed(byte[] res) {
+            this.busy = false;
+            if (!this.key.isValid()) return;
+            if (res.length > 0) this.out.add(ByteBuffer.wrap(res));
+            try {
+                onWritable();
+                if (this.session.isOpen()) {
+                    this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+                    dispatch();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer head;
+            while ((head = this.out.peek()) != null) {
+                this.ch.write(head);
+                if (head.hasRemaining()) break;
+                this.out.poll();
+            }
+            if (this.out.isEmpty()) {
+                this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (!this.session.isOpen()) close();
+            } else {
+                this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            this.session.close();
+            if (this.key != null) this.key.cancel();
+            try {
+                this.ch.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package Server;
 
+import Cluster.Partition;
+import Cluster.Peers;
 import Controller.*;
+import Metrics.ServerStats;
+import Persistence.WriteAheadLog;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 /**
  * Classe Servidor
@@ -13,11 +21,90 @@ import java.net.Socket;
  * Controller.Controller no map, não havendo alterações significativas no código.
  */
 public class Server {
+    private static final int DEFAULT_PORT = 12345;
+
+    /**
+     * O número de linhas e colunas da grelha é dado por "grid.size" (por
+     * omissão 5) e é comunicado aos clientes quando se ligam.
+     * O modo de funcionamento é escolhido com a propriedade "server.mode":
+     * "threads" (por omissão) atende cada conexão numa thread própria,
+     * enquanto "nio" usa o {@link NioServer}, configurável com "nio.loops",
+     * "nio.workers" e "nio.queue". Por exemplo: java -Dserver.mode=nio Server.Server
+     * Caso seja indicada a propriedade "wal.dir", o estado é recuperado dessa
+     * diretoria e todas as alterações passam a ser lá guardadas (ver
+     * {@link WriteAheadLog}), com "wal.batchMillis", "wal.compactBytes",
+     * "wal.snapshotMillis" e "wal.durable" (por omissão, as respostas
+     * esperam pelo fsync).
+     * As estatísticas do servidor (ver {@link ServerStats}) são escritas no
+     * log a cada "stats.logSeconds" segundos (por omissão 60; 0 desativa).
+     * Os contactos são guardados em épocas de "contacts.epochMillis"
+     * milissegundos (por omissão um dia), sendo mantidas apenas as últimas
+     * "contacts.window" épocas (por omissão 14).
+     * O servidor escuta na porta "server.port" (por omissão 12345). Para
+     * correr vários servidores em cluster (ver {@link Partition}), cada um
+     * recebe a lista de todos os nós em "cluster.nodes" ("host:porta,...",
+     * pela mesma ordem em todos), o seu índice nessa lista em "cluster.self"
+     * e o segredo partilhado em "cluster.secret", obrigatório e não vazio,
+     * já que qualquer cliente que o conheça é aceite como nó. Os nós devem usar o modo
+     * "threads": no modo "nio", os workers ficam bloqueados à espera das
+     * respostas dos outros nós, e dois nós que esperem um pelo outro com
+     * todos os workers ocupados bloqueiam.
+     */
     public static void main(String[] args) throws Exception {
-        Skeleton skeleton = new ControllerSkeleton(new UsersController(), new RegisterUsers());
-        var ss = new ServerSocket(12345);
+        UsersController users = new UsersController();
+        RegisterUsers contacts = new RegisterUsers(
+                Long.getLong("contacts.epochMillis", RegisterUsers.DEFAULT_EPOCH_MILLIS),
+                Integer.getInteger("contacts.window", RegisterUsers.DEFAULT_WINDOW));
+        int grid = Integer.getInteger("grid.size", ControllerSkeleton.DEFAULT_GRID);
+        ControllerSkeleton skeleton = new ControllerSkeleton(users, contacts, grid);
+        int port = Integer.getInteger("server.port", DEFAULT_PORT);
+        String nodes = System.getProperty("cluster.nodes");
+        if (nodes != null) {
+            Partition partition = Partition.parse(nodes, Integer.getInteger("cluster.self", 0), grid);
+            skeleton.setPeers(new Peers(partition, System.getProperty("cluster.secret")));
+            if (System.getProperty("server.mode", "threads").equals("nio"))
+                System.out.println("Aviso: no modo nio, os nós de um cluster podem bloquear à espera uns dos outros");
+        }
+        String walDir = System.getProperty("wal.dir");
+        if (walDir != null)
+            skeleton.setJournal(WriteAheadLog.open(Path.of(walDir), users, contacts,
+                    Long.getLong("wal.batchMillis", 0),
+                    Long.getLong("wal.compactBytes", 64L << 20),
+                    Long.getLong("wal.snapshotMillis", 10 * 60 * 1000L),
+                    Boolean.parseBoolean(System.getProperty("wal.durable", "true"))));
+        skeleton.getStats().startLogging(Long.getLong("stats.logSeconds", 60));
+        int cores = Runtime.getRuntime().availableProcessors();
+        switch (System.getProperty("server.mode", "threads")) {
+            case "nio" -> new NioServer(skeleton, port,
+                    Integer.getInteger("nio.loops", Math.max(1, cores / 2)),
+                    Integer.getInteger("nio.workers", cores * 2),
+                    Integer.getInteger("nio.queue", 1024)).run();
+            case "threads" -> threadPerConnection(skeleton, port,
+                    Boolean.parseBoolean(System.getProperty("server.virtualThreads", "true")),
+                    Integer.getInteger("server.maxSessions", Integer.MAX_VALUE));
+            default -> System.out.println("Modo desconhecido: " + System.getProperty("server.mode"));
+        }
+    }
+
+    /**
+     * Aceita conexões indefinidamente, atendendo cada uma numa nova thread.
+     * Por omissão são usadas virtual threads ("server.virtualThreads"), que
+     * ficam estacionadas sem ocupar uma thread do sistema enquanto o cliente
+     * não envia pedidos. Quando o número de sessões ativas atinge
+     * "server.maxSessions", o servidor deixa de aceitar conexões até que
+     * alguma termine.
+     * @param skeleton skeleton que atende os pedidos
+     * @param port porta em que o servidor escuta
+     * @param virtual true para usar virtual threads, false para threads da plataforma
+     * @param maxSessions número máximo de sessões em simultâneo
+     */
+    private static void threadPerConnection(Skeleton skeleton, int port, boolean virtual, int maxSessions) throws Exception {
+        var ss = new ServerSocket(port);
+        ExecutorService executor = virtual ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        Semaphore sessions = new Semaphore(maxSessions);
         while(true) {
             System.out.println("À espera de conexão");
+            sessions.acquire();
             Socket s = ss.accept();
 
             Runnable user = () -> {
@@ -27,9 +114,11 @@ public class Server {
                     skeleton.handle(dis,dos);
                 } catch (Exception e) {
                     e.printStackTrace();
+                } finally {
+                    sessions.release();
                 }
             };
-            new Thread(user).start();
+            executor.execute(user);
         }
     }
 }
@@ -1,12 +1,27 @@
 package Server;
 
+import Cluster.Partition;
+import Protocol.Frame;
+import Protocol.Opcode;
+import Protocol.Protocol;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import User.Location;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Classe Server.Stub
@@ -14,29 +29,282 @@ import java.util.TreeMap;
  * Sempre que algum User.User fizer uma query, o Server.Stub irá enviar os dados
  * necessários e, de seguida, irá receber a resposta do Server.Server e
  * retorná-la ao User.User correspondente.
+ * Logo após a conexão, negoceia com o servidor o protocolo binário
+ * (ver {@link Protocol}), pelo que todos os pedidos seguem em Frames.
+ * As Frames recebidas são lidas por uma thread própria, que entrega as
+ * respostas a quem fez o pedido e trata das notificações que o servidor
+ * envia por iniciativa própria.
+ * Cada pedido leva um id e a resposta é entregue ao CompletableFuture
+ * registado com esse id, pelo que várias threads podem ter pedidos em
+ * curso ao mesmo tempo na mesma conexão. Os métodos terminados em Async
+ * devolvem esse CompletableFuture; os restantes esperam pela resposta.
+ * O servidor só aceita pedidos em nome de Users autenticados nesta
+ * conexão. O Stub guarda o identificador que o servidor atribui a cada
+ * User no login e envia-o nesses pedidos, em vez do username.
+ * Caso o servidor pertença a um cluster (ver {@link Partition}), o Stub
+ * liga-se também aos restantes nós e envia cada pedido ao nó certo: os
+ * pedidos em nome de um User ao nó casa desse User, os pedidos sobre uma
+ * localização ao nó dono dessa localização. O mapa junta as localizações
+ * ocupadas de todos os nós.
+ * A conexão e a negociação do protocolo desistem ao fim de
+ * {@link #CONNECT_TIMEOUT_MILLIS}, ficando o Stub desligado.
  */
 public class Stub {
+    /** Tempo máximo, em milissegundos, para estabelecer a conexão e negociar o protocolo */
+    public static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
     private final DataOutputStream dos;
     private final DataInputStream dis;
     private final Socket s;
+    private final Lock lock = new ReentrantLock();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    private final Map<String, Runnable> onExposure = new ConcurrentHashMap<>();
+    private final Map<Location, CompletableFuture<Boolean>> watches = new ConcurrentHashMap<>();
+    private final Lock mapLock = new ReentrantLock();
+    private final Map<Location, Collection<String>> mapCopy = new TreeMap<>();
+    private long mapVersion = 0;
+    private int mapSize = -1;
+    private final int gridSize;
+    private final int version;
+    private final Map<String, Long> handles = new ConcurrentHashMap<>();
+    private final Map<Long, String> users = new ConcurrentHashMap<>();
+    private final Partition partition;
+    private final Stub[] nodes;
+    private final List<String> dictionary = new ArrayList<>();
 
     /**
      * Construtor por omissão da classse Stub
      */
     public Stub() {
+        this("localhost", 12345);
+    }
+
+    /**
+     * Construtor parametrizado da classe Stub
+     * Logo após a conexão, fica a conhecer o número de linhas e colunas da
+     * grelha do servidor (ver {@link #getGridSize()}) e, caso o servidor
+     * pertença a um cluster, liga-se aos restantes nós.
+     * @param host endereço do servidor
+     * @param port porta do servidor
+     */
+    public Stub(String host, int port) {
+        this(host, port, true);
+    }
+
+    /**
+     * Construtor parametrizado da classe Stub
+     * @param host endereço do servidor
+     * @param port porta do servidor
+     * @param route false para enviar todos os pedidos a este servidor, mesmo
+     *              que pertença a um cluster (usado pelos próprios nós)
+     */
+    public Stub(String host, int port, boolean route) {
         Socket s = null;
         DataOutputStream dos = null;
         DataInputStream dis = null;
+        int grid = 5;
+        int version = 0;
         try {
-            s = new Socket("localhost", 12345);
+            s = new Socket();
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            s.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
             dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
             dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            dos.writeUTF(Protocol.HELLO);
+            dos.writeByte(Protocol.VERSION);
+            dos.flush();
+            version = dis.readUnsignedByte();
+            if (version == 0)
+                throw new IOException("O servidor não suporta o protocolo binário");
+            // os servidores anteriores à versão 3 usavam sempre uma grelha 5x5
+            if (version >= 3) grid = dis.readInt();
+            // depois da negociação, a thread que lê as Frames espera o tempo que for preciso
+            s.setSoTimeout(0);
         } catch (IOException e) {
             e.printStackTrace();
+            // sem o protocolo binário, o Stub fica desligado (ver isConnected)
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+            s = null;
+            dos = null;
+            dis = null;
         }
+        this.closed = dis == null;
         this.s = s;
         this.dos = dos;
         this.dis = dis;
+        this.gridSize = grid;
+        this.version = version;
+        if (dis != null) Thread.ofVirtual().start(this::receive);
+        Partition partition = null;
+        Stub[] nodes = null;
+        if (route && dis != null && version >= 5) {
+            try {
+                Frame res = call(new Frame(Opcode.CLUSTER));
+                int count = (int) res.getVarLong();
+                List<String> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) list.add(res.getString());
+                if (count > 1) {
+                    int self = (int) res.getVarLong();
+                    partition = new Partition(list, -1, this.gridSize);
+                    nodes = new Stub[count];
+                    for (int i = 0; i < count; i++)
+                        nodes[i] = i == self ? this : new Stub(partition.getHost(i), partition.getPort(i), false);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        this.partition = partition;
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return Stub ligado ao nó casa de um User (este, fora de um cluster)
+     */
+    private Stub home(String user) {
+        return this.nodes == null ? this : this.nodes[this.partition.homeOf(user)];
+    }
+
+    /**
+     * @return Stub ligado ao nó dono de uma localização (este, fora de um cluster)
+     */
+    private Stub owner(Location loc) {
+        return this.nodes == null ? this : this.nodes[this.partition.ownerOf(loc)];
+    }
+
+    /**
+     * @return true caso a conexão ao servidor esteja estabelecida
+     */
+    public boolean isConnected() {
+        return this.dis != null && !this.closed;
+    }
+
+    /**
+     * Ciclo da thread que lê as Frames enviadas pelo servidor
+     */
+    private void receive() {
+        try {
+            while (true) {
+                Frame frame = Frame.readFrom(this.dis);
+                if (frame.getOpcode() == Opcode.EXPOSURE) exposed(frame);
+                else if (frame.getOpcode() == Opcode.LOCATION_FREE) {
+                    CompletableFuture<Boolean> watch = this.watches.remove(frame.getLocation());
+                    if (watch != null) watch.complete(true);
+                }
+                else if (frame.getOpcode() != null && !frame.getOpcode().isPush()) {
+                    CompletableFuture<Frame> res = this.pending.remove(frame.getId());
+                    if (res != null) res.complete(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (!this.closed) e.printStackTrace();
+        } finally {
+            this.closed = true;
+            this.pending.values().forEach(res -> res.completeExceptionally(new EOFException("Conexão terminada")));
+            this.watches.values().forEach(watch -> watch.complete(false));
+        }
+    }
+
+    /**
+     * Entrega uma notificação EXPOSURE à ação do User a que se refere. Os
+     * servidores anteriores à versão 6 não indicam o User, pelo que a
+     * notificação é entregue a todos os Users subscritos nesta conexão.
+     */
+    private void exposed(Frame frame) throws EOFException {
+        if (this.version < 6) {
+            this.onExposure.values().forEach(Runnable::run);
+            return;
+        }
+        String user = this.users.get(frame.getVarLong());
+        Runnable action = user == null ? null : this.onExposure.get(user);
+        if (action != null) action.run();
+    }
+
+    /**
+     * Envia um pedido ao servidor sem esperar pela resposta
+     * @param req frame com o pedido
+     * @return CompletableFuture completado com a frame de resposta, ou
+     * excecionalmente caso a conexão termine antes de ela chegar
+     */
+    private CompletableFuture<Frame> callAsync(Frame req) {
+        int id = this.nextId.incrementAndGet() & Integer.MAX_VALUE;
+        CompletableFuture<Frame> res = new CompletableFuture<>();
+        this.pending.put(id, res);
+        try {
+            if (this.closed) throw new EOFException("Conexão terminada");
+            send(req.setId(id));
+            if (this.closed) throw new EOFException("Conexão terminada");
+        } catch (IOException e) {
+            this.pending.remove(id);
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    /**
+     * Envia um pedido arbitrário a este servidor, sem passar pelo cluster.
+     * Usado pelos nós de um cluster para trocarem mensagens entre si.
+     * @param req frame com o pedido
+     * @return CompletableFuture completado com a frame de resposta
+     */
+    public CompletableFuture<Frame> request(Frame req) {
+        return callAsync(req);
+    }
+
+    /**
+     * Envia um pedido ao servidor e espera pela respetiva resposta
+     * @param req frame com o pedido
+     * @return frame com a resposta
+     * @throws IOException caso a comunicação falhe
+     */
+    private Frame call(Frame req) throws IOException {
+        try {
+            return callAsync(req).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Espera pelo resultado de um pedido assíncrono
+     * @param res resultado
+     * @param fallback valor a devolver caso o pedido falhe
+     * @return resultado do pedido, ou fallback caso tenha falhado
+     */
+    private static <T> T await(CompletableFuture<T> res, T fallback) {
+        try {
+            return res.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return fallback;
+    }
+
+    /**
+     * Envia um pedido que não tem resposta
+     * @param req frame com o pedido
+     * @throws IOException caso a comunicação falhe
+     */
+    private void send(Frame req) throws IOException {
+        lock.lock();
+        try {
+            req.writeTo(this.dos);
+            this.dos.flush();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -47,18 +315,14 @@ public class Stub {
      * @return true caso o registo tenha sido bem sucedido, false caso contrário
      */
     public boolean register(String user, String pw, boolean priv) {
-        boolean res = false;
-        try {
-            this.dos.writeUTF("register");
-            this.dos.writeUTF(user);
-            this.dos.writeUTF(pw);
-            this.dos.writeBoolean(priv);
-            this.dos.flush();
-            res = this.dis.readBoolean();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return res;
+        return await(registerAsync(user, pw, priv), false);
+    }
+
+    public CompletableFuture<Boolean> registerAsync(String user, String pw, boolean priv) {
+        Stub home = home(user);
+        if (home != this) return home.registerAsync(user, pw, priv);
+        return callAsync(new Frame(Opcode.REGISTER).putString(user).putString(pw).putBoolean(priv))
+                .thenApply(Stub::readBoolean);
     }
 
     /**
@@ -68,17 +332,38 @@ public class Stub {
      * @return true caso a autenticação seja bem sucedida, false em caso contrário
      */
     public boolean login(String user, String pw) {
-        boolean r = false;
-        try {
-            this.dos.writeUTF("login");
-            this.dos.writeUTF(user);
-            this.dos.writeUTF(pw);
-            this.dos.flush();
-            r = this.dis.readBoolean();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return r;
+        return await(loginAsync(user, pw), false);
+    }
+
+    public CompletableFuture<Boolean> loginAsync(String user, String pw) {
+        Stub home = home(user);
+        if (home != this) return home.loginAsync(user, pw);
+        return callAsync(new Frame(Opcode.LOGIN).putString(user).putString(pw)).thenApply(res -> {
+            try {
+                boolean r = res.getBoolean();
+                if (r && this.version >= 4) {
+                    long handle = res.getVarLong();
+                    this.handles.put(user, handle);
+                    this.users.put(handle, user);
+                }
+                return r;
+            } catch (EOFException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Acrescenta a um pedido o User em nome do qual é feito: o identificador
+     * recebido no login a partir da versão 4 do protocolo, o username nas
+     * anteriores. Um User sem login nesta conexão é enviado com um
+     * identificador inválido, sendo o pedido recusado pelo servidor.
+     * @param req frame com o pedido
+     * @param user username
+     * @return a própria frame
+     */
+    private Frame putUser(Frame req, String user) {
+        return this.version >= 4 ? req.putVarLong(this.handles.getOrDefault(user, -1L)) : req.putString(user);
     }
 
     /**
@@ -86,9 +371,13 @@ public class Stub {
      * Destroi o socket criado.
      */
     public void killStub() {
+        if (this.nodes != null)
+            for (Stub node : this.nodes)
+                if (node != this) node.killStub();
+        if (this.s == null) return;
         try {
-            this.dos.writeUTF("exit");
-            this.dos.flush();
+            this.closed = true;
+            send(new Frame(Opcode.EXIT));
             s.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -104,18 +393,72 @@ public class Stub {
      *             corresponde a um par (x,y)
      */
     public boolean changeLoc(String user, String locX, String locY) {
-        boolean r = false;
-        try {
-            this.dos.writeUTF("change location");
-            this.dos.writeUTF(user);
-            this.dos.writeUTF(locX);
-            this.dos.writeUTF(locY);
-            this.dos.flush();
-            r = this.dis.readBoolean();
-        } catch (IOException e) {
-            e.printStackTrace();
+        return await(changeLocAsync(user, Location.parse(locX, locY)), false);
+    }
+
+    public CompletableFuture<Boolean> changeLocAsync(String user, Location loc) {
+        Stub home = home(user);
+        if (home != this) return home.changeLocAsync(user, loc);
+        return callAsync(putUser(new Frame(Opcode.CHANGE_LOCATION), user).putLocation(loc)).thenApply(Stub::readBoolean);
+    }
+
+    /**
+     * Atualiza a localização de vários User.User num único pedido
+     * @param users usernames
+     * @param locs localizações, pela mesma ordem que os usernames
+     * @return conjunto com as posições das entradas que foram aplicadas
+     */
+    public BitSet changeLocations(List<String> users, List<Location> locs) {
+        return await(changeLocationsAsync(users, locs), new BitSet());
+    }
+
+    public CompletableFuture<BitSet> changeLocationsAsync(List<String> users, List<Location> locs) {
+        return this.nodes == null ? sendLocations(users, locs) : route(users, locs);
+    }
+
+    private CompletableFuture<BitSet> sendLocations(List<String> users, List<Location> locs) {
+        Frame req = new Frame(Opcode.BATCH_CHANGE_LOCATION).putVarLong(users.size());
+        for (int i = 0; i < users.size(); i++)
+            putUser(req, users.get(i)).putLocation(locs.get(i));
+        return callAsync(req).thenApply(res -> {
+            try {
+                int count = (int) res.getVarLong();
+                byte[] status = new byte[(count + 7) / 8];
+                for (int i = 0; i < status.length; i++) status[i] = (byte) res.getByte();
+                return BitSet.valueOf(status);
+            } catch (EOFException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Divide um lote de deslocações pelos nós casa dos Users, juntando os
+     * resultados pela ordem original
+     */
+    private CompletableFuture<BitSet> route(List<String> users, List<Location> locs) {
+        Map<Stub, List<Integer>> byNode = new IdentityHashMap<>();
+        for (int i = 0; i < users.size(); i++)
+            byNode.computeIfAbsent(home(users.get(i)), k -> new ArrayList<>()).add(i);
+        BitSet r = new BitSet();
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (Map.Entry<Stub, List<Integer>> entry : byNode.entrySet()) {
+            List<Integer> idx = entry.getValue();
+            List<String> u = new ArrayList<>(idx.size());
+            List<Location> l = new ArrayList<>(idx.size());
+            for (int i : idx) {
+                u.add(users.get(i));
+                l.add(locs.get(i));
+            }
+            Stub node = entry.getKey();
+            CompletableFuture<BitSet> part = node.sendLocations(u, l);
+            parts.add(part.thenAccept(status -> {
+                synchronized (r) {
+                    for (int k = status.nextSetBit(0); k >= 0; k = status.nextSetBit(k + 1)) r.set(idx.get(k));
+                }
+            }));
         }
-        return r;
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> r);
     }
 
     /**
@@ -127,17 +470,13 @@ public class Stub {
      * @return número de pessoas situadas numa dada localização
      */
     public int howManyInLocation(String locX, String locY) {
-        int r = 0;
-        try {
-            this.dos.writeUTF("how many people in location");
-            this.dos.writeUTF(locX);
-            this.dos.writeUTF(locY);
-            this.dos.flush();
-            r = this.dis.readInt();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return r;
+        return await(howManyInLocationAsync(Location.parse(locX, locY)), 0);
+    }
+
+    public CompletableFuture<Integer> howManyInLocationAsync(Location loc) {
+        Stub owner = owner(loc);
+        if (owner != this) return owner.howManyInLocationAsync(loc);
+        return callAsync(new Frame(Opcode.HOW_MANY_IN_LOCATION).putLocation(loc)).thenApply(Stub::readInt);
     }
 
     /**
@@ -146,16 +485,30 @@ public class Stub {
      * @return true se for privilegiado
      */
     public boolean isUserPrivileged(String user) {
-        boolean r = false;
-        try {
-            this.dos.writeUTF("is privileged");
-            this.dos.writeUTF(user);
-            this.dos.flush();
-            r = this.dis.readBoolean();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return r;
+        return await(isUserPrivilegedAsync(user), false);
+    }
+
+    public CompletableFuture<Boolean> isUserPrivilegedAsync(String user) {
+        Stub home = home(user);
+        if (home != this) return home.isUserPrivilegedAsync(user);
+        return callAsync(putUser(new Frame(Opcode.IS_PRIVILEGED), user)).thenApply(Stub::readBoolean);
+    }
+
+    /**
+     * Pede ao servidor as suas estatísticas
+     * @param user identificador de um user privilegiado
+     * @return estatísticas em texto, ou uma String vazia caso o user não seja privilegiado
+     */
+    public String stats(String user) {
+        Stub home = home(user);
+        if (home != this) return home.stats(user);
+        return await(callAsync(putUser(new Frame(Opcode.STATS), user)).thenApply(res -> {
+            try {
+                return res.getString();
+            } catch (EOFException e) {
+                throw new CompletionException(e);
+            }
+        }), "");
     }
 
     /**
@@ -163,10 +516,13 @@ public class Stub {
      * @param user identificador do user
      */
     public void commInfection(String user) {
+        Stub home = home(user);
+        if (home != this) {
+            home.commInfection(user);
+            return;
+        }
         try {
-            this.dos.writeUTF("communicate infection");
-            this.dos.writeUTF(user);
-            this.dos.flush();
+            send(putUser(new Frame(Opcode.COMMUNICATE_INFECTION), user));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -174,43 +530,81 @@ public class Stub {
     }
 
     /**
-     * Carrega o mapa de todas as localizações da grelha
-     * Primeiro, começa por enviar ao seu servidor um boolean para que seja validado
-     * com o objetivo de ter acesso ao mapa. Também é enviado o número de linhas e
-     * colunas da grelha. De seguida, inicia-se um ciclo que começa por receber um
-     * booleano que lhe indica se irá receber uma última "entrada" do mapa pretendido
-     * com o par (Localização, Lista de usernames). Caso esse booleano seja true,
-     * significa que será a última iteração do ciclo. Depois, recebe duas Strings que
-     * correspondem aos parâmetros da localização, com o par (x,y). Recebe também,
-     * associado a essa localização, o tamanho da lista de usernames irá receber,
-     * relembrando que essa lista corresponde aos usernames que estão nessa localização.
-     * Ao receber o tamanho, começa-se um novo ciclo que adiciona todos os usernames
-     * à lista associada. Caso não haja nenhum elemento a adicionar, a lista irá
-     * permanecer vazia, significando que não há ninguém nessa localização.
-     * @param n número de linhas e colunas da grelha
-     * @return mapa com todas as localizações e listas de usernames de cada cliente
-     * associadas
+     * @return número de linhas e colunas da grelha do servidor
+     */
+    public int getGridSize() {
+        return this.gridSize;
+    }
+
+    /**
+     * Carrega o mapa das localizações ocupadas da grelha
+     * O Stub guarda uma cópia das localizações ocupadas e a versão do mapa a
+     * que ela corresponde. Envia ao servidor essa versão e o número de
+     * linhas e colunas da grelha, e recebe uma única Frame com a nova
+     * versão e se se trata de uma fotografia completa.
+     * Os Users são referidos pelo seu id: a Frame traz primeiro os pares
+     * (id, username) que o servidor ainda não enviou nesta conexão, que são
+     * acrescentados ao dicionário do Stub. Segue-se o número de localizações
+     * alteradas e, para cada uma, as suas coordenadas num único número
+     * (x * n + y), o número de Users que lá se encontram e os seus ids;
+     * uma localização sem ninguém é retirada da cópia.
+     * As localizações vazias não fazem parte do mapa, pelo que o seu
+     * tamanho depende apenas do número de localizações ocupadas.
+     * @return mapa com as localizações ocupadas e listas de usernames de
+     * cada cliente associadas
      */
-    public Map<Location, Collection<String>> loadMap(int n)  {
+    public Map<Location, Collection<String>> loadMap()  {
+        if (this.nodes == null) return loadOwnMap();
         Map<Location, Collection<String>> map = new TreeMap<>();
+        for (Stub node : this.nodes) map.putAll(node == this ? loadOwnMap() : node.loadMap());
+        return map;
+    }
+
+    /**
+     * Carrega o mapa das localizações ocupadas deste servidor
+     */
+    private Map<Location, Collection<String>> loadOwnMap() {
+        int n = this.gridSize;
         try {
-            this.dos.writeUTF("loadmap");
-            this.dos.writeInt(n);
-            this.dos.flush();
-            while (dis.readBoolean()) {
-                String locX = dis.readUTF();
-                String locY = dis.readUTF();
-                int size = dis.readInt();
-                Location loc = new Location(locX, locY);
-                map.put(loc, new ArrayList<>());
-                for (int i = 0; i < size ; i++) {
-                    String user = dis.readUTF();
-                    Collection<String> list = map.get(loc);
-                    list.add(user);
-                }
+            mapLock.lock();
+            if (n != this.mapSize) {
+                this.mapCopy.clear();
+                this.mapVersion = 0;
+                this.mapSize = n;
             }
+            Frame res = call(new Frame(Opcode.LOAD_MAP_DELTA).putVarLong(this.mapVersion).putInt(n));
+            long version = res.getVarLong();
+            if (res.getBoolean()) this.mapCopy.clear();
+            long names = res.getVarLong();
+            for (long k = 0; k < names; k++) {
+                int id = (int) res.getVarLong();
+                while (this.dictionary.size() <= id) this.dictionary.add(null);
+                this.dictionary.set(id, res.getString());
+            }
+            long cells = res.getVarLong();
+            for (long c = 0; c < cells; c++) {
+                long packed = res.getVarLong();
+                Location loc = new Location((int) (packed / n), (int) (packed % n));
+                int size = (int) res.getVarLong();
+                Collection<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size ; i++)
+                    list.add(this.dictionary.get((int) res.getVarLong()));
+                if (list.isEmpty()) this.mapCopy.remove(loc);
+                else this.mapCopy.put(loc, list);
+            }
+            this.mapVersion = version;
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            mapLock.unlock();
+        }
+        Map<Location, Collection<String>> map = new TreeMap<>();
+        try {
+            mapLock.lock();
+            for (Map.Entry<Location, Collection<String>> entry : this.mapCopy.entrySet())
+                map.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        } finally {
+            mapLock.unlock();
         }
         return map;
     }
@@ -227,41 +621,111 @@ public class Stub {
     }
 
     /**
-     * Executa até numa dada localização estarem 0 users (é seguro ir)
+     * Executa até numa dada localização estarem 0 users (é seguro ir).
+     * Em vez de perguntar periodicamente, pede ao servidor que avise esta
+     * conexão quando a localização ficar vazia e espera por esse aviso.
+     * Várias threads à espera da mesma localização partilham o mesmo aviso.
      * @param locX coordenada x da localização
      * @param locY coordenada y da localização
+     * @return true caso a localização esteja vazia (ou seja inválida), false
+     * caso a conexão tenha terminado entretanto
      */
-    public void verifLoc(String locX, String locY) {
-        int numPeople;
+    public boolean verifLoc(String locX, String locY) {
+        Location loc = Location.parse(locX, locY);
+        Stub owner = owner(loc);
+        if (owner != this) return owner.verifLoc(locX, locY);
+        CompletableFuture<Boolean> watch = new CompletableFuture<>();
+        CompletableFuture<Boolean> previous = this.watches.putIfAbsent(loc, watch);
+        if (previous != null) watch = previous;
+        boolean r = false;
         try {
-            do {
-                this.dos.writeUTF("verify location");
-                this.dos.writeUTF(locX);
-                this.dos.writeUTF(locY);
-                this.dos.flush();
-                numPeople = this.dis.readInt();
-                if (numPeople > 0) timeout(5);
-            } while (numPeople > 0);
+            if (previous == null && !call(new Frame(Opcode.WATCH_LOCATION).putLocation(loc)).getBoolean()) {
+                this.watches.remove(loc, watch);
+                watch.complete(true);
+            }
+            r = watch.get();
         } catch (IOException e) {
+            this.watches.remove(loc, watch);
+            watch.complete(false);
+            e.printStackTrace();
+        } catch (ExecutionException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return r;
     }
 
     /**
-     *  Pergunta ao servidor se o user esteve em contacto com alguem infetado,
-     *  em caso positivo o utilizador é notificado
+     * Pede ao servidor que notifique esta conexão sempre que o user tiver
+     * estado em contacto com alguém infetado, incluindo contactos que tenham
+     * ocorrido antes da subscrição
      * @param user identificador do utilizador
+     * @param onExposure ação executada a cada notificação desse user,
+     *                   substituindo a de uma subscrição anterior do mesmo user
+     * @return true caso a subscrição tenha sido aceite
      */
-    public boolean notification(String user) {
+    public boolean subscribe(String user, Runnable onExposure) {
+        Stub home = home(user);
+        if (home != this) return home.subscribe(user, onExposure);
         boolean r = false;
+        // registada antes do pedido, já que a notificação pode chegar antes da resposta
+        this.onExposure.put(user, onExposure);
         try {
-            this.dos.writeUTF("check notification");
-            this.dos.writeUTF(user);
-            this.dos.flush();
-            r = this.dis.readBoolean();
+            r = call(putUser(new Frame(Opcode.SUBSCRIBE), user)).getBoolean();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (!r) this.onExposure.remove(user, onExposure);
         return r;
     }
+
+    /**
+     * Cancela a subscrição das notificações de um user
+     * @param user identificador do utilizador
+     */
+    public void unsubscribe(String user) {
+        Stub home = home(user);
+        if (home != this) {
+            home.unsubscribe(user);
+            return;
+        }
+        try {
+            call(putUser(new Frame(Opcode.UNSUBSCRIBE), user));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.onExposure.remove(user);
+    }
+
+    /**
+     *  Pergunta ao servidor se o user esteve em contacto com alguem infetado,
+     *  em caso positivo o utilizador é notificado
+     * @param user identificador do utilizador
+     */
+    public boolean notification(String user) {
+        return await(notificationAsync(user), false);
+    }
+
+    public CompletableFuture<Boolean> notificationAsync(String user) {
+        Stub home = home(user);
+        if (home != this) return home.notificationAsync(user);
+        return callAsync(putUser(new Frame(Opcode.CHECK_NOTIFICATION), user)).thenApply(Stub::readBoolean);
+    }
+
+    private static boolean readBoolean(Frame res) {
+        try {
+            return res.getBoolean();
+        } catch (EOFException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static int readInt(Frame res) {
+        try {
+            return res.getInt();
+        } catch (EOFException e) {
+            throw new CompletionException(e);
+        }
+    }
 }
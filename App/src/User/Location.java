@@ -1,29 +1,37 @@
 package User;
 
-import java.util.Objects;
-
 /**
  * Classe Localização
  * Contém as coordenadas de um User.User, que são atribuídas através
- * de uma grelha NxN.
+ * de uma grelha NxN. É imutável e guarda as coordenadas como inteiros,
+ * pelo que pode ser partilhada sem cópias e usada diretamente como chave
+ * de Maps. A conversão a partir de texto é feita uma única vez, na
+ * fronteira do protocolo, através de {@link #parse(String, String)}.
  */
-public class Location implements Comparable<Location>{
-    private String coordX;
-    private String coordY;
+public final class Location implements Comparable<Location> {
+    /** Localização de um User que ainda não se deslocou (ou que foi retirado da grelha) */
+    public static final Location NONE = new Location(-1, -1);
 
-    public Location() {
-        this.coordX = "";
-        this.coordY = "";
-    }
+    private final int coordX;
+    private final int coordY;
+    private final int hash;
 
-    public Location(String coordX, String coordY) {
+    public Location(int coordX, int coordY) {
         this.coordX = coordX;
         this.coordY = coordY;
+        // x ^ y daria o mesmo hash a toda a diagonal e a cada par (x, y), (y, x)
+        this.hash = Long.hashCode((((long) coordX << 32) | (coordY & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L);
     }
 
-    public Location(Location loc) {
-        this.coordX = loc.getCoordX();
-        this.coordY = loc.getCoordY();
+    /**
+     * Converte um par de coordenadas em texto numa Localização
+     * @param coordX coordenada x
+     * @param coordY coordenada y
+     * @return localização correspondente
+     * @throws NumberFormatException caso alguma das coordenadas não seja um inteiro
+     */
+    public static Location parse(String coordX, String coordY) {
+        return new Location(Integer.parseInt(coordX), Integer.parseInt(coordY));
     }
 
     @Override
@@ -31,41 +39,26 @@ public class Location implements Comparable<Location>{
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Location location = (Location) o;
-        return Objects.equals(coordX, location.coordX) && Objects.equals(coordY, location.coordY);
+        return coordX == location.coordX && coordY == location.coordY;
     }
+
     @Override
     public int hashCode() {
-        return Objects.hash(coordX, coordY);
+        return this.hash;
     }
 
-    public String getCoordX() {
+    public int getCoordX() {
         return this.coordX;
     }
 
-    public void setCoordX(String coordX) {
-        this.coordX = coordX;
-    }
-
-    public String getCoordY() {
+    public int getCoordY() {
         return this.coordY;
     }
 
-    public void setCoordY(String coordY) {
-        this.coordY = coordY;
-    }
-
-    public Location clone() {
-        return new Location(this);
-    }
-
     @Override
     public int compareTo(Location location) {
-        int r;
-        if (this.coordX.equals(location.coordX)) {
-            r = this.coordY.compareTo(location.coordY);
-        } else {
-            r = this.coordX.compareTo(location.coordX);
-        }
+        int r = Integer.compare(this.coordX, location.coordX);
+        if (r == 0) r = Integer.compare(this.coordY, location.coordY);
         return r;
     }
 
@@ -80,7 +73,7 @@ public class Location implements Comparable<Location>{
      * @return true se estiber dentro do limite
      */
     public boolean isInLimit(int limit) {
-        return Integer.parseInt(this.coordX) < limit && Integer.parseInt(this.coordY) < limit &&
-               Integer.parseInt(this.coordX) >= 0 && Integer.parseInt(this.coordY) >= 0;
+        return this.coordX < limit && this.coordY < limit &&
+               this.coordX >= 0 && this.coordY >= 0;
     }
 }
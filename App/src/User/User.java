@@ -1,97 +1,134 @@
 package User;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Classe User
+ * O username, a password e o acesso privilegiado nunca mudam, pelo que
+ * são lidos sem qualquer sincronização. A localização é uma referência
+ * volátil para uma {@link Location}, que é imutável e pode ser partilhada.
+ * O estado de infeção e o número de exposições por notificar ocupam um
+ * único int (bit 0 para a infeção, restantes bits para as exposições),
+ * alterado atomicamente através de um {@link VarHandle}. Assim, cada User
+ * ocupa apenas os seus campos, sem locks próprios.
+ * Quem altera a localização é responsável por garantir que não há duas
+ * alterações em simultâneo (ver {@link Controller.UsersController}).
+ * Num cluster, os Users de outros nós que se deslocam para uma localização
+ * deste são representados por cópias sem password (null), que nunca podem
+ * ser autenticadas (ver {@link #isShadow()}).
+ */
 public class User implements Comparable<User> {
+    private static final int INFECTED = 1;
+    private static final int EXPOSURE = 2;
+    private static final VarHandle STATUS;
+    static {
+        try {
+            STATUS = MethodHandles.lookup().findVarHandle(User.class, "status", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int id;
     private final String username;
     private final String password;
     private final boolean privileged;
-    private Location location;
-    private boolean infected;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock wlock = lock.writeLock();
-    private final Lock rlock = lock.readLock();
+    private volatile Location location;
+    private volatile int status;
 
-    public User(String username, String password, boolean privileged) {
+    /**
+     * Construtor parametrizado da classe User
+     * @param id identificador numérico, atribuído sequencialmente no registo
+     * @param username username
+     * @param password password, ou null para a cópia de um User de outro nó
+     * @param privileged true caso tenha acessos privilegiados
+     */
+    public User(int id, String username, String password, boolean privileged) {
+        this.id = id;
         this.username = username;
         this.password = password;
         this.privileged = privileged;
-        this.infected = false;
-        this.location = new Location();
+        this.status = 0;
+        this.location = Location.NONE;
     }
 
     public User(User user) {
+        this.id = user.getId();
         this.username = user.getUsername();
         this.password = user.getPassword();
         this.privileged = user.isPrivileged();
-        this.infected = user.isInfected();
+        this.status = user.isInfected() ? INFECTED : 0;
         this.location = user.getLocation();
     }
 
 
+    public int getId() {
+        return this.id;
+    }
+
     public Location getLocation() {
-        try {
-            rlock.lock();
-            return new Location(this.location);
-        }
-        finally {
-          rlock.unlock();
-        }
+        return this.location;
     }
 
     public String getUsername() {
-        try {
-            rlock.lock();
-            return this.username;
-        } finally {
-            rlock.unlock();
-        }
+        return this.username;
     }
 
     public String getPassword() {
-        try {
-            rlock.lock();
-            return this.password;
-        } finally {
-            rlock.unlock();
-        }
+        return this.password;
     }
 
     public void setLocation(Location location) {
-        try {
-            wlock.lock();
-            this.location = location.clone();
-        } finally {
-            wlock.unlock();
-        }
+        this.location = location;
     }
 
     public boolean isPrivileged() {
-        try {
-            rlock.lock();
-            return this.privileged;
-        } finally {
-            rlock.unlock();
-        }
+        return this.privileged;
+    }
+
+    /**
+     * @return true caso seja a cópia, sem password, de um User de outro nó do cluster
+     */
+    public boolean isShadow() {
+        return this.password == null;
     }
 
     public boolean isInfected() {
-        try {
-            rlock.lock();
-            return this.infected;
-        } finally {
-            rlock.unlock();
-        }
+        return (this.status & INFECTED) != 0;
     }
 
     public void setInfected(boolean infected) {
-        try {
-            wlock.lock();
-            this.infected = infected;
-        } finally {
-            wlock.unlock();
-        }
+        if (infected) STATUS.getAndBitwiseOr(this, INFECTED);
+        else STATUS.getAndBitwiseAnd(this, ~INFECTED);
+    }
+
+    /**
+     * Regista que um dos contactos do User comunicou uma infeção
+     */
+    public void addExposure() {
+        STATUS.getAndAdd(this, EXPOSURE);
+    }
+
+    /**
+     * @return número de contactos infetados ainda não notificados ao User
+     */
+    public int getExposures() {
+        return this.status >>> 1;
+    }
+
+    /**
+     * Retorna o número de contactos infetados ainda não notificados ao
+     * User, dando-os como notificados
+     * @return número de exposições pendentes
+     */
+    public int takeExposures() {
+        int s;
+        do {
+            s = this.status;
+            if (s >>> 1 == 0) return 0;
+        } while (!STATUS.compareAndSet(this, s, s & INFECTED));
+        return s >>> 1;
     }
 
     /**
@@ -102,15 +139,7 @@ public class User implements Comparable<User> {
      * @return true se estiver na location, false caso contrário
      */
     public boolean isInLocation(Location l) {
-        try {
-            rlock.lock();
-            boolean r = false;
-            if (this.location.equals(l)) r = true;
-            return r;
-        }
-        finally {
-            rlock.unlock();
-        }
+        return this.location.equals(l);
     }
 
     /**
@@ -119,12 +148,7 @@ public class User implements Comparable<User> {
      * @return true caso corresponda, false caso contrário
      */
     public boolean login(String pw) {
-        try {
-            rlock.lock();
-            return this.password.equals(pw) && !this.infected;
-        } finally {
-            rlock.unlock();
-        }
+        return this.password != null && this.password.equals(pw) && !isInfected();
     }
 
     /**
@@ -133,12 +157,7 @@ public class User implements Comparable<User> {
      * @return true caso seja igual, false caso contrário
      */
     public boolean locEquals(Location l) {
-        try {
-            rlock.lock();
-            return this.location.equals(l);
-        } finally {
-            rlock.unlock();
-        }
+        return this.location.equals(l);
     }
 
     @Override
@@ -0,0 +1,282 @@
+package Controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import Cluster.Partition;
+import Cluster.Peers;
+import Protocol.Frame;
+import Protocol.Opcode;
+import Protocol.Protocol;
+import User.Location;
+import User.User;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Testes dos pedidos do protocolo binário atendidos pelo ControllerSkeleton,
+ * enviados diretamente a uma sessão, sem sockets
+ */
+class ControllerSkeletonTest {
+    private UsersController users;
+    private ControllerSkeleton skeleton;
+    private Session session;
+    private final List<Frame> replies = new ArrayList<>();
+    // notificações, escritas pela thread de cada sessão
+    private final List<Frame> pushes = new CopyOnWriteArrayList<>();
+    private volatile boolean failPushes = false;
+
+    @BeforeEach
+    void setUp() {
+        this.users = new UsersController();
+        this.skeleton = new ControllerSkeleton(this.users, new RegisterUsers());
+        this.session = newSession();
+    }
+
+    private Session newSession() {
+        Session session = new Session(frame -> {
+            if (!frame.getOpcode().isPush()) this.replies.add(frame);
+            else if (this.failPushes) throw new IOException("Escrita falhada");
+            else this.pushes.add(frame);
+        });
+        session.setVersion(Protocol.VERSION);
+        return session;
+    }
+
+    /**
+     * Envia um pedido à sessão
+     */
+    private void send(Frame req) throws Exception {
+        send(this.session, req);
+    }
+
+    private void send(Session session, Frame req) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        req.writeTo(new DataOutputStream(bytes));
+        this.skeleton.handleRequest(session, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                new DataOutputStream(new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Envia um pedido à sessão
+     * @return a resposta
+     */
+    private Frame request(Frame req) throws Exception {
+        int before = this.replies.size();
+        send(req);
+        assertEquals(before + 1, this.replies.size());
+        return this.replies.get(before);
+    }
+
+    /**
+     * Espera até uma condição se verificar, no máximo 5 segundos
+     */
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private long login(String name) throws Exception {
+        assertTrue(request(new Frame(Opcode.REGISTER).putString(name).putString("pw").putBoolean(false)).getBoolean());
+        return relogin(name);
+    }
+
+    private long relogin(String name) throws Exception {
+        Frame res = request(new Frame(Opcode.LOGIN).putString(name).putString("pw"));
+        assertTrue(res.getBoolean());
+        return res.getVarLong();
+    }
+
+    @Test
+    void batchChangeLocationAppliesEntries() throws Exception {
+        long ana = login("ana");
+        Frame res = request(new Frame(Opcode.BATCH_CHANGE_LOCATION).putVarLong(1)
+                .putVarLong(ana).putLocation(new Location(1, 1)));
+        assertEquals(1, res.getVarLong());
+        assertEquals(1, res.getByte());
+    }
+
+    @Test
+    void batchChangeLocationRejectsCountLargerThanFrame() throws Exception {
+        long ana = login("ana");
+        Frame res = request(new Frame(Opcode.BATCH_CHANGE_LOCATION).putVarLong(Integer.MAX_VALUE)
+                .putVarLong(ana).putLocation(new Location(1, 1)));
+        assertEquals(0, res.getVarLong());
+        assertTrue(this.session.isOpen());
+        assertEquals(0, request(new Frame(Opcode.VERIFY_LOCATION).putLocation(new Location(1, 1))).getInt());
+    }
+
+    @Test
+    void batchChangeLocationRejectsNegativeCount() throws Exception {
+        login("ana");
+        Frame res = request(new Frame(Opcode.BATCH_CHANGE_LOCATION).putVarLong(-1));
+        assertEquals(0, res.getVarLong());
+        assertTrue(this.session.isOpen());
+    }
+
+    @Test
+    void batchChangeLocationRejectsTruncatedCount() throws Exception {
+        // 2^32 + 1 cabe num long, mas é truncado para 1 num int
+        long ana = login("ana");
+        Frame res = request(new Frame(Opcode.BATCH_CHANGE_LOCATION).putVarLong((1L << 32) + 1)
+                .putVarLong(ana).putLocation(new Location(1, 1)));
+        assertEquals(0, res.getVarLong());
+    }
+
+    /**
+     * Põe ana e bob na mesma localização e comunica a infeção de bob
+     * @return identificador de ana na sessão
+     */
+    private long exposeAna() throws Exception {
+        long ana = login("ana");
+        long bob = login("bob");
+        assertTrue(request(new Frame(Opcode.SUBSCRIBE).putVarLong(ana)).getBoolean());
+        assertTrue(request(new Frame(Opcode.CHANGE_LOCATION).putVarLong(ana).putLocation(new Location(1, 1))).getBoolean());
+        assertTrue(request(new Frame(Opcode.CHANGE_LOCATION).putVarLong(bob).putLocation(new Location(1, 1))).getBoolean());
+        send(new Frame(Opcode.COMMUNICATE_INFECTION).putVarLong(bob));
+        return ana;
+    }
+
+    @Test
+    void exposureIsTakenOnceWritten() throws Exception {
+        long handle = exposeAna();
+        User ana = this.users.getUser("ana");
+        await(() -> this.pushes.size() == 1 && ana.getExposures() == 0);
+        assertEquals(handle, this.pushes.get(0).getVarLong());
+    }
+
+    @Test
+    void exposureNamesTheSubscribedUser() throws Exception {
+        long carol = login("carol");
+        assertTrue(request(new Frame(Opcode.SUBSCRIBE).putVarLong(carol)).getBoolean());
+        long ana = exposeAna();
+        await(() -> this.pushes.size() == 1);
+        assertEquals(ana, this.pushes.get(0).getVarLong());
+        assertEquals(0, this.users.getUser("carol").getExposures());
+    }
+
+    @Test
+    void exposureStaysPendingWhenWriteFails() throws Exception {
+        this.failPushes = true;
+        exposeAna();
+        await(() -> !this.session.isOpen());
+        assertEquals(1, this.users.getUser("ana").getExposures());
+        this.session = newSession();
+        long ana = relogin("ana");
+        assertTrue(request(new Frame(Opcode.CHECK_NOTIFICATION).putVarLong(ana)).getBoolean());
+    }
+
+    @Test
+    void watchLocationIsFreedWhenTheLastUserLeaves() throws Exception {
+        long ana = login("ana");
+        assertTrue(request(new Frame(Opcode.CHANGE_LOCATION).putVarLong(ana).putLocation(new Location(1, 1))).getBoolean());
+        assertTrue(request(new Frame(Opcode.WATCH_LOCATION).putLocation(new Location(1, 1))).getBoolean());
+        assertTrue(this.pushes.isEmpty());
+        assertTrue(request(new Frame(Opcode.CHANGE_LOCATION).putVarLong(ana).putLocation(new Location(2, 2))).getBoolean());
+        await(() -> this.pushes.size() == 1);
+        assertEquals(Opcode.LOCATION_FREE, this.pushes.get(0).getOpcode());
+        assertEquals(new Location(1, 1), this.pushes.get(0).getLocation());
+    }
+
+    /**
+     * Torna a sessão na de um nó de um cluster com apenas este nó
+     */
+    private void peer() throws Exception {
+        peer(new Partition(List.of("localhost:12345"), 0, 5));
+    }
+
+    private void peer(Partition partition) throws Exception {
+        this.skeleton.setPeers(new Peers(partition, "s3"));
+        assertTrue(request(new Frame(Opcode.PEER).putString("s3")).getBoolean());
+    }
+
+    @Test
+    void nodeExposeAppliesEntries() throws Exception {
+        login("ana");
+        peer();
+        assertTrue(request(new Frame(Opcode.NODE_EXPOSE).putVarLong(1).putString("ana")).getBoolean());
+        assertEquals(1, this.users.getUser("ana").getExposures());
+    }
+
+    @Test
+    void peerWithWrongSecretIsRejected() throws Exception {
+        this.skeleton.setPeers(new Peers(new Partition(List.of("localhost:12345"), 0, 5), "s3"));
+        assertFalse(request(new Frame(Opcode.PEER).putString("")).getBoolean());
+        assertFalse(request(new Frame(Opcode.NODE_EXPOSE).putVarLong(0)).getBoolean());
+    }
+
+    /**
+     * @return uma localização de um nó
+     */
+    private static Location ownedBy(Partition partition, int node) {
+        for (int x = 0; x < 5; x++)
+            for (int y = 0; y < 5; y++)
+                if (partition.ownerOf(new Location(x, y)) == node) return new Location(x, y);
+        throw new IllegalStateException();
+    }
+
+    @Test
+    void slowPeerDoesNotBlockMovesOfOtherUsers() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0)) {
+            // o nó 1 aceita a conexão mas nunca responde à negociação do protocolo
+            Partition partition = new Partition(List.of("localhost:1", "localhost:" + silent.getLocalPort()), 0, 5);
+            peer(partition);
+            // Users deste nó com ids 0 e 64, que partilham o mesmo lock de deslocações
+            List<String> names = new ArrayList<>();
+            for (int i = 0; names.size() < 65; i++)
+                if (partition.isHome("u" + i)) names.add("u" + i);
+            for (String name : names)
+                assertTrue(request(new Frame(Opcode.REGISTER).putString(name).putString("pw").putBoolean(false)).getBoolean());
+            assertEquals(64, this.users.getUser(names.get(64)).getId() - this.users.getUser(names.get(0)).getId());
+            Session other = new Session(frame -> {});
+            other.setVersion(Protocol.VERSION);
+            send(other, new Frame(Opcode.LOGIN).putString(names.get(0)).putString("pw"));
+            Thread slow = new Thread(() -> {
+                try {
+                    send(other, new Frame(Opcode.CHANGE_LOCATION).putVarLong(0).putLocation(ownedBy(partition, 1)));
+                } catch (Exception ignored) {
+                }
+            });
+            slow.setDaemon(true);
+            slow.start();
+            Thread.sleep(200);
+            long last = relogin(names.get(64));
+            long start = System.nanoTime();
+            assertTrue(request(new Frame(Opcode.CHANGE_LOCATION).putVarLong(last).putLocation(ownedBy(partition, 0))).getBoolean());
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+            assertTrue(slow.isAlive());
+        }
+    }
+
+    @Test
+    void clusterRequiresSecret() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new Peers(new Partition(List.of("localhost:12345"), 0, 5), ""));
+    }
+
+    @Test
+    void nodeExposeRejectsCountLargerThanFrame() throws Exception {
+        login("ana");
+        peer();
+        assertFalse(request(new Frame(Opcode.NODE_EXPOSE).putVarLong(Integer.MAX_VALUE).putString("ana")).getBoolean());
+        assertTrue(this.session.isOpen());
+    }
+
+    @Test
+    void nodeExposeRejectsNegativeCount() throws Exception {
+        peer();
+        assertFalse(request(new Frame(Opcode.NODE_EXPOSE).putVarLong(-1)).getBoolean());
+    }
+}
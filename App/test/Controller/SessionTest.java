@@ -0,0 +1,63 @@
+package Controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import Protocol.Frame;
+import Protocol.Opcode;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Testes das notificações entregues por {@link Session#post(Object, Frame, Runnable)}
+ */
+class SessionTest {
+    private final List<Frame> written = new CopyOnWriteArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch writing = new CountDownLatch(1);
+
+    /**
+     * @return sessão cuja escrita bloqueia até release
+     */
+    private Session blockedSession() {
+        return new Session(frame -> {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.add(frame);
+        });
+    }
+
+    @Test
+    void postCoalescesPendingNotificationsWithTheSameKey() throws Exception {
+        Session session = blockedSession();
+        CountDownLatch sent = new CountDownLatch(2);
+        assertTrue(session.post("first", new Frame(Opcode.EXPOSURE), sent::countDown));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        assertTrue(session.post("ana", new Frame(Opcode.EXPOSURE), sent::countDown));
+        assertTrue(session.post("ana", new Frame(Opcode.EXPOSURE), sent::countDown));
+        release.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(2, written.size());
+    }
+
+    @Test
+    void postClosesSessionWithTooManyPendingNotifications() throws Exception {
+        Session session = blockedSession();
+        assertTrue(session.post(-1, new Frame(Opcode.EXPOSURE), null));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < Session.MAX_PENDING; i++)
+            assertTrue(session.post(i, new Frame(Opcode.EXPOSURE), null));
+        assertFalse(session.post(Session.MAX_PENDING, new Frame(Opcode.EXPOSURE), null));
+        assertFalse(session.isOpen());
+        release.countDown();
+    }
+}
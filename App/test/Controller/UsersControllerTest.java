@@ -0,0 +1,44 @@
+package Controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import User.Location;
+import User.User;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Testes das versões do mapa devolvidas por {@link UsersController#mapDelta(long, int)}
+ */
+class UsersControllerTest {
+
+    private static UsersController withAnaAt(Location loc) {
+        UsersController controller = new UsersController();
+        User ana = controller.register("ana", "pw", false);
+        controller.setLocalizacao(ana, loc, 5);
+        return controller;
+    }
+
+    @Test
+    void mapDeltaSendsOnlyChangedCells() {
+        UsersController controller = withAnaAt(new Location(1, 1));
+        MapDelta first = controller.mapDelta(0, 5);
+        assertTrue(first.isFull());
+        controller.setLocalizacao(controller.getUser("ana"), new Location(2, 2), 5);
+        MapDelta second = controller.mapDelta(first.getVersion(), 5);
+        assertFalse(second.isFull());
+        assertEquals(2, second.getCells().size());
+        assertTrue(second.getCells().get(new Location(1, 1)).isEmpty());
+    }
+
+    @Test
+    void mapDeltaSendsFullMapForVersionOfAnotherProcess() {
+        // o mesmo estado, reposto noutro processo, tem a mesma contagem de alterações
+        long before = withAnaAt(new Location(1, 1)).mapDelta(0, 5).getVersion();
+        UsersController restarted = withAnaAt(new Location(1, 1));
+        MapDelta delta = restarted.mapDelta(before, 5);
+        assertTrue(delta.isFull());
+        assertEquals(1, delta.getCells().size());
+    }
+}
@@ -0,0 +1,104 @@
+package Persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import Controller.RegisterUsers;
+import Controller.UsersController;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Testes da recuperação do estado a partir dos ficheiros do WriteAheadLog
+ */
+class WriteAheadLogTest {
+    @TempDir
+    Path dir;
+
+    private UsersController users;
+
+    private WriteAheadLog open() throws IOException {
+        this.users = new UsersController();
+        return WriteAheadLog.open(this.dir, this.users, new RegisterUsers(), 0, Long.MAX_VALUE, Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Regista Users, esperando que fiquem guardados, e termina o WriteAheadLog
+     */
+    private void register(String... names) throws Exception {
+        WriteAheadLog wal = open();
+        for (String name : names) this.users.register(name, "pw", false);
+        wal.awaitDurable();
+        wal.close();
+    }
+
+    private Path log(long gen) {
+        return this.dir.resolve("wal." + gen);
+    }
+
+    @Test
+    void reopenReplaysRecords() throws Exception {
+        register("ana", "bob");
+        open().close();
+        assertNotNull(this.users.getUser("ana"));
+        assertNotNull(this.users.getUser("bob"));
+    }
+
+    @Test
+    void tornTailOfNewestLogIsTruncated() throws Exception {
+        register("ana", "bob");
+        long size = Files.size(log(0));
+        Files.write(log(0), new byte[] {0, 0, 1}, StandardOpenOption.APPEND);
+        open().close();
+        assertNotNull(this.users.getUser("bob"));
+        assertEquals(size, Files.size(log(0)));
+    }
+
+    @Test
+    void corruptRecordInTheMiddleFailsRecovery() throws Exception {
+        register("ana", "bob");
+        byte[] bytes = Files.readAllBytes(log(0));
+        // um byte do primeiro registo, depois do comprimento e do crc
+        bytes[9] ^= 0x55;
+        Files.write(log(0), bytes);
+        assertThrows(IOException.class, this::open);
+    }
+
+    @Test
+    void tornTailOfOlderLogFailsRecovery() throws Exception {
+        register("ana");
+        register("bob");
+        assertTrue(Files.exists(log(1)));
+        Files.write(log(0), new byte[] {0, 0, 1}, StandardOpenOption.APPEND);
+        assertThrows(IOException.class, this::open);
+    }
+
+    @Test
+    void changesAfterWriteFailureAreRefused() throws Exception {
+        WriteAheadLog wal = open();
+        // a próxima escrita da thread do WAL falha, como num disco cheio
+        Field channel = WriteAheadLog.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel) channel.get(wal)).close();
+        this.users.register("ana", "pw", false);
+        assertThrows(UncheckedIOException.class, wal::awaitDurable);
+        assertThrows(UncheckedIOException.class, () -> this.users.register("bob", "pw", false));
+        wal.close();
+    }
+
+    @Test
+    void changesAfterCloseAreRefused() throws Exception {
+        WriteAheadLog wal = open();
+        wal.close();
+        assertThrows(UncheckedIOException.class, () -> this.users.register("ana", "pw", false));
+    }
+}
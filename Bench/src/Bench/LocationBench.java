@@ -0,0 +1,45 @@
+package Bench;
+
+import User.Location;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Classe LocationBench
+ * Mede as operações de {@link Location} usadas em cada pedido: a
+ * comparação, que ordena as chaves dos mapas, e a verificação dos limites
+ * da grelha.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationBench {
+    @Param({"10", "1000"})
+    public int grid;
+
+    private Location[] locations;
+    private int i;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        this.locations = new Location[1024];
+        for (int k = 0; k < this.locations.length; k++)
+            this.locations[k] = new Location(random.nextInt(-1, this.grid + 1), random.nextInt(-1, this.grid + 1));
+    }
+
+    @Benchmark
+    public int compareTo() {
+        int k = this.i++ & (this.locations.length - 1);
+        return this.locations[k].compareTo(this.locations[(k + 1) & (this.locations.length - 1)]);
+    }
+
+    @Benchmark
+    public boolean isInLimit() {
+        return this.locations[this.i++ & (this.locations.length - 1)].isInLimit(this.grid);
+    }
+}
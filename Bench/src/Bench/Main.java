@@ -0,0 +1,20 @@
+package Bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Classe Main
+ * Corre os benchmarks com os argumentos habituais do JMH, acrescentando
+ * sempre o profiler de GC, para que cada resultado venha acompanhado da
+ * memória alocada por operação.
+ * Por exemplo: {@code java -jar Bench/target/benchmarks.jar ProtocolBench -p grid=10}
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(cli).addProfiler(GCProfiler.class).build()).run();
+    }
+}
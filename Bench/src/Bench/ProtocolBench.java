@@ -0,0 +1,106 @@
+package Bench;
+
+import Controller.ControllerSkeleton;
+import Controller.Session;
+import Protocol.Frame;
+import Protocol.Opcode;
+import Protocol.Protocol;
+import User.Location;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Classe ProtocolBench
+ * Mede a codificação e descodificação das Frames do protocolo binário e o
+ * atendimento completo de um pedido pelo {@link ControllerSkeleton}: ler
+ * a Frame, executar o comando e escrever a resposta. Deve ser corrido com
+ * o profiler de GC (ver {@link Main}) para medir a memória alocada por
+ * pedido.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBench {
+    @Param({"1000"})
+    public int users;
+
+    @Param({"10", "1000"})
+    public int grid;
+
+    private World world;
+    private ControllerSkeleton skeleton;
+    private Session session;
+    private Blackhole sink;
+    private byte[] howMany, changeLocation, loadMapDelta;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream dos = new DataOutputStream(this.out);
+
+    @Setup(Level.Trial)
+    public void setup(Blackhole bh) throws IOException {
+        this.world = new World(this.users, this.grid);
+        this.skeleton = new ControllerSkeleton(this.world.users, this.world.contacts, this.grid);
+        this.sink = bh;
+        // as respostas são consumidas sem serem escritas, para medir apenas o servidor
+        this.session = new Session(frame -> this.sink.consume(frame));
+        this.session.setVersion(Protocol.VERSION);
+        int handle = this.session.login(this.world.users.getUser("user1"));
+        Location loc = new Location(this.grid / 2, this.grid / 2);
+        this.howMany = encode(new Frame(Opcode.HOW_MANY_IN_LOCATION).setId(1).putLocation(loc));
+        this.changeLocation = encode(new Frame(Opcode.CHANGE_LOCATION).setId(1).putVarLong(handle).putLocation(loc));
+        this.loadMapDelta = encode(new Frame(Opcode.LOAD_MAP_DELTA).setId(1).putVarLong(0).putInt(this.grid));
+    }
+
+    private byte[] encode(Frame frame) throws IOException {
+        this.out.reset();
+        frame.writeTo(this.dos);
+        return this.out.toByteArray();
+    }
+
+    @Benchmark
+    public int encodeFrame() throws IOException {
+        this.out.reset();
+        new Frame(Opcode.CHANGE_LOCATION).setId(7).putVarLong(1).putLocation(new Location(3, 4)).writeTo(this.dos);
+        return this.out.size();
+    }
+
+    @Benchmark
+    public Location decodeFrame() throws IOException {
+        Frame frame = Frame.readFrom(new DataInputStream(new ByteArrayInputStream(this.changeLocation)));
+        frame.getVarLong();
+        return frame.getLocation();
+    }
+
+    private boolean handle(byte[] request) throws Exception {
+        return this.skeleton.handleRequest(this.session, new DataInputStream(new ByteArrayInputStream(request)), this.dos);
+    }
+
+    @Benchmark
+    public boolean howManyInLocation() throws Exception {
+        return handle(this.howMany);
+    }
+
+    @Benchmark
+    public boolean changeLocation() throws Exception {
+        return handle(this.changeLocation);
+    }
+
+    /**
+     * Primeiro pedido de uma sessão nova: o mapa completo e o dicionário de
+     * todos os usernames
+     */
+    @Benchmark
+    public boolean loadMapDelta() throws Exception {
+        this.session = new Session(frame -> this.sink.consume(frame));
+        this.session.setVersion(Protocol.VERSION);
+        return handle(this.loadMapDelta);
+    }
+}
@@ -0,0 +1,79 @@
+package Bench;
+
+import User.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Classe RegisterUsersBench
+ * Mede o registo de contactos quando um User chega a uma localização
+ * ocupada e a marcação das exposições quando um User comunica a infeção,
+ * em função do número de Users e do número de contactos de cada um.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegisterUsersBench {
+    @Param({"1000", "100000"})
+    public int users;
+
+    @Param({"10", "1000"})
+    public int grid;
+
+    /** Número de Users já presentes na localização a que o User chega */
+    @Param({"4", "64"})
+    public int occupants;
+
+    private World world;
+
+    @State(Scope.Thread)
+    public static class Local {
+        SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+        List<User> list = new ArrayList<>();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.world = new World(this.users, this.grid);
+    }
+
+    private Collection<User> occupants(Local local) {
+        local.list.clear();
+        for (int i = 0; i < this.occupants; i++) local.list.add(this.world.all.get(local.random.nextInt(this.users)));
+        return local.list;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void createNewRegisters(Local local) {
+        User user = this.world.all.get(local.random.nextInt(this.users));
+        this.world.contacts.createNewRegisters(user, occupants(local));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void createNewRegisters4(Local local) {
+        User user = this.world.all.get(local.random.nextInt(this.users));
+        this.world.contacts.createNewRegisters(user, occupants(local));
+    }
+
+    /**
+     * Substitui a antiga procura por contactos infetados: a infeção marca
+     * uma exposição em cada contacto, que é depois consumida pelo próprio
+     */
+    @Benchmark
+    @Threads(1)
+    public int markExposed(Local local) {
+        User user = this.world.all.get(local.random.nextInt(this.users));
+        int r = this.world.contacts.markExposed(user).size();
+        for (User contact : this.world.contacts.getContacts(user)) this.world.users.takeExposures(contact);
+        return r;
+    }
+}
@@ -0,0 +1,55 @@
+package Bench;
+
+import User.Location;
+import User.User;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Classe UserBench
+ * Mede o custo de um {@link User}: a criação, cuja memória alocada por
+ * operação (gc.alloc.rate.norm, ver {@link Main}) é a memória ocupada por
+ * cada User, e as leituras e alterações feitas em cada pedido.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserBench {
+    private final String name = "user1";
+    private final String pw = "pw1";
+    private final Location a = new Location(1, 2);
+    private final Location b = new Location(3, 4);
+    private User user;
+    private int id;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.user = new User(1, this.name, this.pw, false);
+    }
+
+    @Benchmark
+    public User newUser() {
+        return new User(this.id++, this.name, this.pw, false);
+    }
+
+    @Benchmark
+    public boolean login() {
+        return this.user.login(this.pw);
+    }
+
+    @Benchmark
+    public boolean move() {
+        Location old = this.user.getLocation();
+        this.user.setLocation(old == this.a ? this.b : this.a);
+        return this.user.locEquals(old);
+    }
+
+    @Benchmark
+    public int exposure() {
+        this.user.addExposure();
+        return this.user.takeExposures();
+    }
+}
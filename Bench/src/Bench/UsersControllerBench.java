@@ -0,0 +1,140 @@
+package Bench;
+
+import Controller.UsersController;
+import User.Location;
+import User.User;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Classe UsersControllerBench
+ * Mede as operações do {@link Controller.UsersController} chamadas em cada
+ * pedido: contar os Users numa localização, mudar de localização,
+ * carregar o mapa e autenticar um User. Cada método existe numa versão com
+ * uma e com quatro threads, para medir a contenção nos locks das
+ * localizações. O grupo "registerStorm" mede as autenticações enquanto
+ * outra thread regista Users novos sem parar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UsersControllerBench {
+    @Param({"1000", "100000"})
+    public int users;
+
+    @Param({"10", "1000"})
+    public int grid;
+
+    private World world;
+
+    /**
+     * Estado de cada thread: gerador próprio, para que as threads não
+     * partilhem nada além do UsersController
+     */
+    @State(Scope.Thread)
+    public static class Local {
+        SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+    }
+
+    /**
+     * Diretoria de Users própria do grupo "registerStorm", recriada a cada
+     * iteração para que os registos não a façam crescer indefinidamente
+     */
+    @State(Scope.Group)
+    public static class Directory {
+        UsersController users;
+        final AtomicLong next = new AtomicLong();
+
+        @Setup(Level.Iteration)
+        public void setup(UsersControllerBench bench) {
+            this.users = new UsersController();
+            for (int i = 0; i < bench.users; i++) this.users.register("user" + i, "pw" + i, false);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.world = new World(this.users, this.grid);
+    }
+
+    private Location anyLocation(Local local) {
+        return new Location(local.random.nextInt(this.grid), local.random.nextInt(this.grid));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int getNumberInLoc(Local local) {
+        return this.world.users.getNumberInLoc(anyLocation(local));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int getNumberInLoc4(Local local) {
+        return this.world.users.getNumberInLoc(anyLocation(local));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Collection<User> setLocalizacao(Local local) {
+        User user = this.world.all.get(local.random.nextInt(this.users));
+        return this.world.users.setLocalizacao(user, anyLocation(local), this.grid);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Collection<User> setLocalizacao4(Local local) {
+        User user = this.world.all.get(local.random.nextInt(this.users));
+        return this.world.users.setLocalizacao(user, anyLocation(local), this.grid);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public User authenticate(Local local) {
+        int i = local.random.nextInt(this.users);
+        return this.world.users.authenticate("user" + i, "pw" + i);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public User authenticate4(Local local) {
+        int i = local.random.nextInt(this.users);
+        return this.world.users.authenticate("user" + i, "pw" + i);
+    }
+
+    @Benchmark
+    @Group("registerStorm")
+    @GroupThreads(1)
+    public User register(Directory directory) {
+        return directory.users.register("new" + directory.next.incrementAndGet(), "pw", false);
+    }
+
+    @Benchmark
+    @Group("registerStorm")
+    @GroupThreads(3)
+    public User login(Directory directory, Local local) {
+        int i = local.random.nextInt(this.users);
+        return directory.users.authenticate("user" + i, "pw" + i);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void loadMap(Blackhole bh) {
+        Map<Location, Collection<String>> map = this.world.users.loadMap(this.grid);
+        bh.consume(map);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void loadMap4(Blackhole bh) {
+        Map<Location, Collection<String>> map = this.world.users.loadMap(this.grid);
+        bh.consume(map);
+    }
+}
@@ -0,0 +1,41 @@
+package Bench;
+
+import Controller.RegisterUsers;
+import Controller.UsersController;
+import User.Location;
+import User.User;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Classe World
+ * Estado partilhado pelos benchmarks: um UsersController e um RegisterUsers
+ * com um número fixo de Users, espalhados aleatoriamente por uma grelha
+ * n x n. A semente é fixa, para que cada execução parta do mesmo estado.
+ */
+public class World {
+    public final UsersController users;
+    public final RegisterUsers contacts;
+    public final List<User> all;
+    public final int n;
+
+    /**
+     * Construtor parametrizado da classe World
+     * @param count número de Users
+     * @param n dimensão da grelha
+     */
+    public World(int count, int n) {
+        this.users = new UsersController();
+        this.contacts = new RegisterUsers();
+        this.all = new ArrayList<>(count);
+        this.n = n;
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < count; i++) {
+            User user = this.users.register("user" + i, "pw" + i, i == 0, this.contacts::createEntry);
+            this.all.add(user);
+            Location loc = new Location(random.nextInt(n), random.nextInt(n));
+            this.contacts.createNewRegisters(user, this.users.setLocalizacao(user, loc, n));
+        }
+    }
+}